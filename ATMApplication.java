@@ -1,11 +1,20 @@
 import javax.swing.*;
 import javax.swing.border.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.*;
 import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import javax.management.JMException;
 
 public class ATMApplication extends JFrame {
     private static final Color PRIMARY_COLOR = new Color(25, 118, 210);
@@ -20,24 +29,45 @@ public class ATMApplication extends JFrame {
 
     private CardLayout cardLayout;
     private JPanel mainPanel;
-    private Account currentAccount;
-    private Map<String, Account> accounts;
+    private String currentSession;
+    private String currentCard; // for receipts only; requests name the session
+    private long currentBalance;
+    // The last transaction sent that got no answer, and its idempotency key
+    private String unansweredRequest;
+    private long unansweredKey;
+    private CompletableFuture<TransactionHistory> prefetchedHistory;
+    private final AtmOperations operations;
+    private JPanel busyPane;
+    private int pendingRequests;
 
     // Panels
     private JPanel loginPanel, menuPanel, balancePanel, withdrawPanel,
             depositPanel, transferPanel, historyPanel, pinChangePanel;
 
     public ATMApplication() {
-        initializeAccounts();
+        this(newLocalService(initializeAccounts(new AtmEngine())));
+    }
+
+    // operations is either the local engine behind an AtmService or a remote host
+    public ATMApplication(AtmOperations operations) {
+        this.operations = operations;
         setupUI();
         setVisible(true);
     }
 
-    private void initializeAccounts() {
-        accounts = new HashMap<>();
-        accounts.put("1234", new Account("1234", "5000", 250000.0)); // ₹2,50,000
-        accounts.put("5678", new Account("5678", "1234", 150000.0)); // ₹1,50,000
-        accounts.put("9999", new Account("9999", "0000", 50000.0));  // ₹50,000
+    // Opens the demo accounts unless they were already recovered from the journal
+    private static AtmEngine initializeAccounts(AtmEngine engine) {
+        engine.openAccount("1234", "5000", Money.ofRupees(250000)); // ₹2,50,000
+        engine.openAccount("5678", "1234", Money.ofRupees(150000)); // ₹1,50,000
+        engine.openAccount("9999", "0000", Money.ofRupees(50000));  // ₹50,000
+        return engine;
+    }
+
+    // The service for this machine's own terminal, with full cassettes
+    private static AtmService newLocalService(AtmEngine engine) {
+        AtmService service = new AtmService(engine);
+        service.loadCassettes(AtmEngine.LOCAL_TERMINAL, CashCassettes.fullRupeeLoad());
+        return service;
     }
 
     private void setupUI() {
@@ -53,6 +83,7 @@ public class ATMApplication extends JFrame {
 
         createPanels();
         add(mainPanel);
+        createBusyPane();
 
         showPanel("login");
     }
@@ -184,7 +215,10 @@ public class ATMApplication extends JFrame {
 
         JButton logoutButton = createStyledButton("LOGOUT", ERROR_COLOR);
         logoutButton.setPreferredSize(new Dimension(100, 40));
-        logoutButton.addActionListener(e -> showPanel("login"));
+        logoutButton.addActionListener(e -> {
+            operations.logout(currentSession);
+            endSession();
+        });
 
         headerPanel.add(welcomeLabel, BorderLayout.CENTER);
         headerPanel.add(logoutButton, BorderLayout.EAST);
@@ -248,8 +282,14 @@ public class ATMApplication extends JFrame {
         balancePanel.addComponentListener(new ComponentAdapter() {
             @Override
             public void componentShown(ComponentEvent e) {
-                if (currentAccount != null) {
-                    amountLabel.setText(formatCurrency(currentAccount.getBalance()));
+                if (currentSession != null) {
+                    amountLabel.setText(formatCurrency(currentBalance));
+                    submit(operations.balance(currentSession), result -> {
+                        if (result.isSuccess()) {
+                            currentBalance = result.getBalance();
+                            amountLabel.setText(formatCurrency(currentBalance));
+                        }
+                    });
                 }
             }
         });
@@ -272,7 +312,7 @@ public class ATMApplication extends JFrame {
         int[] amounts = {500, 1000, 2000, 5000}; // Changed to Indian denominations
         for (int amount : amounts) {
             JButton btn = createStyledButton("₹" + amount, SECONDARY_COLOR);
-            btn.addActionListener(e -> processWithdrawal(amount));
+            btn.addActionListener(e -> processWithdrawal(Money.ofRupees(amount)));
             quickAmountPanel.add(btn);
         }
 
@@ -285,7 +325,7 @@ public class ATMApplication extends JFrame {
         JButton withdrawButton = createStyledButton("WITHDRAW", PRIMARY_COLOR);
         withdrawButton.addActionListener(e -> {
             try {
-                double amount = Double.parseDouble(customField.getText());
+                long amount = Money.parse(customField.getText());
                 processWithdrawal(amount);
                 customField.setText("");
             } catch (NumberFormatException ex) {
@@ -329,7 +369,7 @@ public class ATMApplication extends JFrame {
         JButton depositButton = createStyledButton("DEPOSIT", SUCCESS_COLOR);
         depositButton.addActionListener(e -> {
             try {
-                double amount = Double.parseDouble(amountField.getText());
+                long amount = Money.parse(amountField.getText());
                 processDeposit(amount);
                 amountField.setText("");
             } catch (NumberFormatException ex) {
@@ -371,7 +411,7 @@ public class ATMApplication extends JFrame {
         transferButton.addActionListener(e -> {
             try {
                 String toAccount = toField.getText();
-                double amount = Double.parseDouble(amountField.getText());
+                long amount = Money.parse(amountField.getText());
                 processTransfer(toAccount, amount);
                 toField.setText("");
                 amountField.setText("");
@@ -406,13 +446,7 @@ public class ATMApplication extends JFrame {
         historyPanel = createTransactionPanel("Transaction History", "📋");
 
         // Create table
-        String[] columns = {"Date", "Type", "Amount", "Balance"};
-        DefaultTableModel model = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        TransactionTableModel model = new TransactionTableModel();
 
         JTable table = new JTable(model);
         table.setFont(TEXT_FONT);
@@ -430,18 +464,17 @@ public class ATMApplication extends JFrame {
         historyPanel.addComponentListener(new ComponentAdapter() {
             @Override
             public void componentShown(ComponentEvent e) {
-                if (currentAccount != null) {
-                    model.setRowCount(0);
-                    List<Transaction> history = currentAccount.getTransactionHistory();
-                    for (int i = history.size() - 1; i >= 0; i--) {
-                        Transaction t = history.get(i);
-                        model.addRow(new Object[]{
-                                new SimpleDateFormat("dd/MM/yyyy HH:mm").format(t.getDate()),
-                                t.getType(),
-                                formatCurrency(Math.abs(t.getAmount())),
-                                formatCurrency(t.getBalance())
-                        });
-                    }
+                if (currentSession != null) {
+                    CompletableFuture<TransactionHistory> history = prefetchedHistory != null
+                            ? prefetchedHistory : operations.history(currentSession);
+                    prefetchedHistory = null;
+                    submit(history, rows -> {
+                        if (rows == null) {
+                            sessionExpired(AtmService.sessionExpired().getMessage());
+                        } else {
+                            model.setHistory(rows);
+                        }
+                    });
                 }
             }
         });
@@ -475,11 +508,11 @@ public class ATMApplication extends JFrame {
             String newPin = new String(newField.getPassword());
             String confirm = new String(confirmField.getPassword());
 
-            if (processPinChange(current, newPin, confirm)) {
+            processPinChange(current, newPin, confirm, () -> {
                 currentField.setText("");
                 newField.setText("");
                 confirmField.setText("");
-            }
+            });
         });
 
         gbc.fill = GridBagConstraints.HORIZONTAL;
@@ -668,11 +701,40 @@ public class ATMApplication extends JFrame {
     }
 
     // Business logic methods
-    private String formatCurrency(double amount) {
-        return String.format("₹%.2f", amount);
+    private String formatCurrency(long amount) {
+        return Money.format(amount);
     }
 
-    private void generateReceipt(String transactionType, double amount, String details) {
+    // Receipt body as HTML for a JLabel; static so it can be rendered headless
+    static String receiptText(long timestamp, String cardNumber, String transactionType, String details,
+                              long amount, long balance) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
+        return String.format(
+                "<html><div style='font-family: monospace; font-size: 11px;'>" +
+                        "<br>================================<br>" +
+                        "<b>TRANSACTION RECEIPT</b><br>" +
+                        "================================<br><br>" +
+                        "Date/Time: %s<br>" +
+                        "Card Number: ****%s<br>" +
+                        "Transaction: %s<br>" +
+                        "%s<br>" +
+                        "Amount: %s<br>" +
+                        "Available Balance: %s<br><br>" +
+                        "================================<br>" +
+                        "Thank you for using SecureBank!<br>" +
+                        "Keep this receipt for your records<br>" +
+                        "================================<br>" +
+                        "</div></html>",
+                dateFormat.format(new Date(timestamp)),
+                cardNumber,
+                transactionType,
+                details,
+                Money.format(amount),
+                Money.format(balance)
+        );
+    }
+
+    private void generateReceipt(String transactionType, long amount, String details) {
         JDialog receiptDialog = new JDialog(this, "Transaction Receipt", true);
         receiptDialog.setSize(450, 600);
         receiptDialog.setLocationRelativeTo(this);
@@ -693,32 +755,8 @@ public class ATMApplication extends JFrame {
         addressLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
 
         // Receipt details
-        SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-        String currentDateTime = dateFormat.format(new Date());
-
-        String receiptText = String.format(
-                "<html><div style='font-family: monospace; font-size: 11px;'>" +
-                        "<br>================================<br>" +
-                        "<b>TRANSACTION RECEIPT</b><br>" +
-                        "================================<br><br>" +
-                        "Date/Time: %s<br>" +
-                        "Card Number: ****%s<br>" +
-                        "Transaction: %s<br>" +
-                        "%s<br>" +
-                        "Amount: %s<br>" +
-                        "Available Balance: %s<br><br>" +
-                        "================================<br>" +
-                        "Thank you for using SecureBank!<br>" +
-                        "Keep this receipt for your records<br>" +
-                        "================================<br>" +
-                        "</div></html>",
-                currentDateTime,
-                currentAccount.getCardNumber(),
-                transactionType,
-                details,
-                formatCurrency(amount),
-                formatCurrency(currentAccount.getBalance())
-        );
+        String receiptText = receiptText(System.currentTimeMillis(), currentCard, transactionType, details,
+                amount, currentBalance);
 
         JLabel receiptLabel = new JLabel(receiptText);
         receiptLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
@@ -751,90 +789,154 @@ public class ATMApplication extends JFrame {
         receiptDialog.setVisible(true);
     }
     private void handleLogin(String cardNumber, String pin) {
-        if (accounts.containsKey(cardNumber)) {
-            Account account = accounts.get(cardNumber);
-            if (account.getPin().equals(pin)) {
-                currentAccount = account;
+        submit(operations.login(cardNumber, pin), result -> {
+            if (result.isSuccess()) {
+                currentSession = result.getSessionToken();
+                currentCard = cardNumber;
+                currentBalance = result.getBalance();
+                // Fetched behind the login so the history screen usually opens without a round trip
+                prefetchedHistory = operations.history(currentSession);
                 showPanel("menu");
                 showMessage("Welcome! Login successful.", SUCCESS_COLOR);
             } else {
-                showMessage("Invalid PIN. Please try again.", ERROR_COLOR);
+                showMessage(result.getMessage(), ERROR_COLOR);
             }
-        } else {
-            showMessage("Card not recognized. Please try again.", ERROR_COLOR);
-        }
+        });
     }
 
-    private void processWithdrawal(double amount) {
-        if (currentAccount.getBalance() >= amount && amount > 0) {
-            currentAccount.withdraw(amount);
-            showMessage(String.format("Successfully withdrew %s", formatCurrency(amount)), SUCCESS_COLOR);
-            generateReceipt("CASH WITHDRAWAL", amount, "Cash dispensed successfully");
-        } else if (amount <= 0) {
-            showMessage("Please enter a valid amount.", ERROR_COLOR);
-        } else {
-            showMessage("Insufficient funds.", ERROR_COLOR);
-        }
+    private void processWithdrawal(long amount) {
+        long key = requestKey("withdraw " + amount);
+        submit(operations.withdraw(currentSession, amount, key), key, result -> {
+            if (result.isSuccess()) {
+                currentBalance = result.getBalance();
+                prefetchedHistory = null;
+                showMessage(String.format("Successfully withdrew %s", formatCurrency(amount)), SUCCESS_COLOR);
+                generateReceipt("CASH WITHDRAWAL", amount, "Cash dispensed successfully");
+            } else {
+                showMessage(result.getMessage(), ERROR_COLOR);
+            }
+        });
     }
 
-    private void processDeposit(double amount) {
-        if (amount > 0) {
-            currentAccount.deposit(amount);
-            showMessage(String.format("Successfully deposited %s", formatCurrency(amount)), SUCCESS_COLOR);
-            generateReceipt("CASH DEPOSIT", amount, "Amount credited to account");
-        } else {
-            showMessage("Please enter a valid amount.", ERROR_COLOR);
-        }
+    private void processDeposit(long amount) {
+        long key = requestKey("deposit " + amount);
+        submit(operations.deposit(currentSession, amount, key), key, result -> {
+            if (result.isSuccess()) {
+                currentBalance = result.getBalance();
+                prefetchedHistory = null;
+                showMessage(String.format("Successfully deposited %s", formatCurrency(amount)), SUCCESS_COLOR);
+                generateReceipt("CASH DEPOSIT", amount, "Amount credited to account");
+            } else {
+                showMessage(result.getMessage(), ERROR_COLOR);
+            }
+        });
     }
 
-    private void processTransfer(String toAccountNumber, double amount) {
-        if (!accounts.containsKey(toAccountNumber)) {
-            showMessage("Recipient account not found.", ERROR_COLOR);
-            return;
-        }
+    private void processTransfer(String toAccountNumber, long amount) {
+        long key = requestKey("transfer " + toAccountNumber + " " + amount);
+        submit(operations.transfer(currentSession, toAccountNumber, amount, key), key, result -> {
+            if (result.isSuccess()) {
+                currentBalance = result.getBalance();
+                prefetchedHistory = null;
+                showMessage(String.format("Successfully transferred %s to account %s", formatCurrency(amount), toAccountNumber), SUCCESS_COLOR);
+                generateReceipt("FUND TRANSFER", amount, "Transfer to Account: " + toAccountNumber);
+            } else {
+                showMessage(result.getMessage(), ERROR_COLOR);
+            }
+        });
+    }
 
-        if (toAccountNumber.equals(currentAccount.getCardNumber())) {
-            showMessage("Cannot transfer to the same account.", ERROR_COLOR);
-            return;
-        }
+    private void processPinChange(String currentPin, String newPin, String confirmPin, Runnable onChanged) {
+        // The host answers any retry under the key with the first change's result, whatever
+        // PIN it carries, so the PIN is left out and never kept here
+        long key = requestKey("pin change");
+        submit(operations.changePin(currentSession, currentPin, newPin, confirmPin, key), key, result -> {
+            if (!result.isSuccess()) {
+                showMessage(result.getMessage(), ERROR_COLOR);
+                return;
+            }
 
-        if (currentAccount.getBalance() >= amount && amount > 0) {
-            Account toAccount = accounts.get(toAccountNumber);
-            currentAccount.withdraw(amount);
-            toAccount.deposit(amount);
-
-            // Add transfer record to both accounts
-            currentAccount.addTransaction("Transfer Out to " + toAccountNumber, -amount);
-            toAccount.addTransaction("Transfer In from " + currentAccount.getCardNumber(), amount);
-
-            showMessage(String.format("Successfully transferred %s to account %s", formatCurrency(amount), toAccountNumber), SUCCESS_COLOR);
-            generateReceipt("FUND TRANSFER", amount, "Transfer to Account: " + toAccountNumber);
-        } else if (amount <= 0) {
-            showMessage("Please enter a valid amount.", ERROR_COLOR);
-        } else {
-            showMessage("Insufficient funds.", ERROR_COLOR);
-        }
+            onChanged.run();
+            showMessage("PIN successfully changed.", SUCCESS_COLOR);
+        });
     }
 
-    private boolean processPinChange(String currentPin, String newPin, String confirmPin) {
-        if (!currentAccount.getPin().equals(currentPin)) {
-            showMessage("Current PIN is incorrect.", ERROR_COLOR);
-            return false;
+    // Idempotency key for a transaction. One that got no answer keeps its key, so if the
+    // customer tries exactly the same transaction again the host can tell it was already
+    // made instead of making it twice.
+    private long requestKey(String request) {
+        if (!request.equals(unansweredRequest)) {
+            unansweredRequest = request;
+            unansweredKey = IdempotencyCache.newKey();
         }
+        return unansweredKey;
+    }
 
-        if (newPin.length() != 4 || !newPin.matches("\\d+")) {
-            showMessage("New PIN must be exactly 4 digits.", ERROR_COLOR);
-            return false;
-        }
+    // Runs a request off the EDT and hands its result back on the EDT. The busy pane
+    // blocks mouse clicks meanwhile, but typing into the fields keeps working.
+    private <T> void submit(CompletableFuture<T> request, Consumer<T> onResult) {
+        submit(request, 0, onResult);
+    }
+
+    // requestKey is the transaction's idempotency key from requestKey(), or 0
+    private <T> void submit(CompletableFuture<T> request, long requestKey, Consumer<T> onResult) {
+        setBusy(true);
+        request.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            setBusy(false);
+            if (error == null && requestKey != 0 && requestKey == unansweredKey) {
+                unansweredRequest = null; // answered, so the next identical request is a new one
+            }
+            if (error != null) {
+                showMessage(describeFailure(error), ERROR_COLOR);
+            } else if (result instanceof AtmResult
+                    && ((AtmResult) result).getStatus() == AtmResult.Status.SESSION_EXPIRED) {
+                sessionExpired(((AtmResult) result).getMessage());
+            } else {
+                onResult.accept(result);
+            }
+        }));
+    }
+
+    private void sessionExpired(String message) {
+        endSession();
+        showMessage(message, ERROR_COLOR);
+    }
 
-        if (!newPin.equals(confirmPin)) {
-            showMessage("New PIN and confirmation do not match.", ERROR_COLOR);
-            return false;
+    private void endSession() {
+        currentSession = null;
+        currentCard = null;
+        currentBalance = 0;
+        prefetchedHistory = null;
+        unansweredRequest = null;
+        showPanel("login");
+    }
+
+    private static String describeFailure(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+            return "The bank is not responding. Trying the same transaction again will not repeat it.";
+        }
+        if (cause instanceof RejectedExecutionException) {
+            return "The ATM is busy. Please try again in a moment.";
         }
+        return "Transaction could not be completed: " + cause.getMessage();
+    }
+
+    private void createBusyPane() {
+        busyPane = new JPanel(new GridBagLayout());
+        busyPane.setOpaque(false);
+        JLabel label = new JLabel("Processing…");
+        label.setFont(BUTTON_FONT);
+        label.setForeground(PRIMARY_COLOR);
+        busyPane.add(label);
+        busyPane.addMouseListener(new MouseAdapter() {}); // swallow clicks while busy
+        busyPane.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+        setGlassPane(busyPane);
+    }
 
-        currentAccount.setPin(newPin);
-        showMessage("PIN successfully changed.", SUCCESS_COLOR);
-        return true;
+    private void setBusy(boolean busy) {
+        pendingRequests += busy ? 1 : -1;
+        busyPane.setVisible(pendingRequests > 0);
     }
 
     private void showPanel(String panelName) {
@@ -870,70 +972,98 @@ public class ATMApplication extends JFrame {
         dialog.setVisible(true);
     }
 
+    // No arguments runs a standalone terminal, "--server [host:]port" runs a headless
+    // host and "--connect host:port" runs a terminal against such a host.
     public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            new ATMApplication();
-        });
-    }
-}
-
-// Account class to manage account data
-class Account {
-    private String cardNumber;
-    private String pin;
-    private double balance;
-    private List<Transaction> transactionHistory;
-
-    public Account(String cardNumber, String pin, double balance) {
-        this.cardNumber = cardNumber;
-        this.pin = pin;
-        this.balance = balance;
-        this.transactionHistory = new ArrayList<>();
+        if (args.length == 2 && args[0].equals("--connect")) {
+            AtmClient client = new AtmClient(AtmClient.parseAddress(args[1]), System.getProperty("atm.terminal"));
+            SwingUtilities.invokeLater(() -> new ATMApplication(client));
+            return;
+        }
+        boolean serve = args.length == 2 && args[0].equals("--server");
+        if (args.length > 0 && !serve) {
+            System.err.println("Usage: ATMApplication [--server [host:]port | --connect host:port]");
+            System.exit(2);
+        }
 
-        // Add initial balance transaction
-        addTransaction("Account Opening", balance);
-    }
+        AtmEngine engine;
+        try {
+            AccountStore store = AccountStore.open(System.getProperty("atm.store", "memory"));
+            Journal journal = new Journal(Paths.get(System.getProperty("atm.journal", "atm.journal")));
+            SnapshotStore snapshots = new SnapshotStore(Paths.get(System.getProperty("atm.snapshots", "atm-snapshots")));
+            engine = initializeAccounts(new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, new PinHasher(), store,
+                    journal, snapshots));
+            engine.scheduleSnapshots(5, TimeUnit.MINUTES);
+            shardHotAccounts(engine, System.getProperty("atm.hot.accounts", ""));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not open transaction journal or account store: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                engine.close();
+            } catch (IOException e) {
+                System.err.println("Could not close transaction journal: " + e.getMessage());
+            }
+        }));
 
-    public String getCardNumber() { return cardNumber; }
-    public String getPin() { return pin; }
-    public void setPin(String pin) { this.pin = pin; }
-    public double getBalance() { return balance; }
+        FraudPipeline fraud = startFraudPipeline(engine);
+        AtmService service = newLocalService(engine);
+        startMetrics(service.getMetrics(), fraud, engine.getIdempotencyCache());
+        if (serve) {
+            String address = args[1].contains(":") ? args[1] : "127.0.0.1:" + args[1];
+            try {
+                AtmServer server = new AtmServer(AtmClient.parseAddress(address), service);
+                server.start();
+                System.out.println("ATM host listening on " + server.getAddress());
+            } catch (IOException e) {
+                System.err.println("Could not start ATM host: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
 
-    public void withdraw(double amount) {
-        balance -= amount;
-        addTransaction("Withdrawal", -amount);
+        SwingUtilities.invokeLater(() -> {
+            new ATMApplication(service);
+        });
     }
 
-    public void deposit(double amount) {
-        balance += amount;
-        addTransaction("Deposit", amount);
+    // -Datm.hot.accounts=card,card... lists accounts credited by so many terminals at once that their credits are sharded
+    private static void shardHotAccounts(AtmEngine engine, String cards) {
+        for (String card : cards.split(",")) {
+            if (!card.isBlank() && !engine.shardCredits(card.trim())) {
+                System.err.println("No account " + card.trim() + " to shard credits for");
+            }
+        }
     }
 
-    public void addTransaction(String type, double amount) {
-        transactionHistory.add(new Transaction(type, amount, balance));
+    // Scores every transaction in the background and logs what the scorers flag
+    private static FraudPipeline startFraudPipeline(AtmEngine engine) {
+        FraudPipeline pipeline = new FraudPipeline();
+        pipeline.addScorer(new FraudScorers.RapidNewRecipients());
+        pipeline.addScorer(new FraudScorers.UnusualAmount());
+        pipeline.addListener((scorer, event, reason) -> System.err.println(
+                "Fraud alert from " + scorer.getClass().getSimpleName() + ": " + event + ": " + reason));
+        pipeline.start();
+        engine.setFraudPipeline(pipeline);
+        return pipeline;
     }
 
-    public List<Transaction> getTransactionHistory() {
-        return new ArrayList<>(transactionHistory);
+    // Metrics are always visible over JMX; -Datm.metrics.port also serves them as text at
+    // /metrics, on loopback unless -Datm.metrics.host names the interface to listen on
+    private static void startMetrics(AtmMetrics metrics, FraudPipeline fraud, IdempotencyCache requests) {
+        try {
+            metrics.registerMBean("atm:type=Metrics");
+            Integer port = Integer.getInteger("atm.metrics.port");
+            String host = System.getProperty("atm.metrics.host");
+            if (port != null) {
+                MetricsEndpoint endpoint = host == null ? new MetricsEndpoint(port, metrics, fraud, requests)
+                        : new MetricsEndpoint(new InetSocketAddress(host, port), metrics, fraud, requests);
+                System.out.println("Metrics at http://" + endpoint.getAddress() + "/metrics");
+            }
+        } catch (IOException | JMException e) {
+            System.err.println("Could not publish metrics: " + e.getMessage());
+        }
     }
 }
-
-// Transaction class to store transaction details
-class Transaction {
-    private Date date;
-    private String type;
-    private double amount;
-    private double balance;
-
-    public Transaction(String type, double amount, double balance) {
-        this.date = new Date();
-        this.type = type;
-        this.amount = amount;
-        this.balance = balance;
-    }
-
-    public Date getDate() { return date; }
-    public String getType() { return type; }
-    public double getAmount() { return amount; }
-    public double getBalance() { return balance; }
-}
\ No newline at end of file
@@ -0,0 +1,67 @@
+import java.util.List;
+
+// Account class to manage account data; all amounts are in paise.
+// PIN hash, balance and last LSN live in the engine's AccountStore; the account
+// itself only names the card and holds its history. Mutators are called by
+// AtmEngine while holding the account's lock stripe.
+public class Account {
+    private final String cardNumber;
+    private final long packedCardNumber;
+    private final AccountStore store;
+    private final TransactionHistory history;
+    private VelocityLimits.CardWindows velocity; // created on the first debit, guarded like the balance
+    private IdempotencyCache.Recent recentRequests; // created on the first keyed request, guarded likewise
+    private volatile CreditShards creditShards; // null unless credits to this account are sharded
+
+    public Account(String cardNumber, AccountStore store, TransactionHistory history) {
+        this.cardNumber = cardNumber;
+        this.packedCardNumber = CardNumbers.pack(cardNumber);
+        this.store = store;
+        this.history = history;
+    }
+
+    public String getCardNumber() { return cardNumber; }
+    public long getPackedCardNumber() { return packedCardNumber; }
+    public String getPinHash() { return store.getPinHash(packedCardNumber); }
+    // Includes credits still waiting in the account's shards, if it has any
+    public long getBalance() {
+        CreditShards shards = creditShards;
+        return shards == null ? store.getBalance(packedCardNumber) : shards.total(this);
+    }
+    // The balance in the store, without credits still waiting in shards
+    long getFoldedBalance() { return store.getBalance(packedCardNumber); }
+    public long getLastLsn() { return store.getLastLsn(packedCardNumber); } // journal LSN of the last mutation applied
+    public TransactionHistory getHistory() { return history; }
+    VelocityLimits.CardWindows getVelocity() { return velocity; }
+    void setVelocity(VelocityLimits.CardWindows velocity) { this.velocity = velocity; }
+    IdempotencyCache.Recent getRecentRequests() { return recentRequests; }
+    void setRecentRequests(IdempotencyCache.Recent recentRequests) { this.recentRequests = recentRequests; }
+    CreditShards getCreditShards() { return creditShards; }
+    void setCreditShards(CreditShards creditShards) { this.creditShards = creditShards; }
+
+    public void setPinHash(String pinHash, long lsn) {
+        store.setPinHash(packedCardNumber, pinHash, lsn);
+    }
+
+    public void withdraw(long amount, long timestamp, long lsn) {
+        long balance = getFoldedBalance() - amount;
+        store.setBalance(packedCardNumber, balance, lsn);
+        history.append(timestamp, TransactionType.WITHDRAWAL, 0, -amount, balance);
+    }
+
+    public void deposit(long amount, long timestamp, long lsn) {
+        long balance = getFoldedBalance() + amount;
+        store.setBalance(packedCardNumber, balance, lsn);
+        history.append(timestamp, TransactionType.DEPOSIT, 0, amount, balance);
+    }
+
+    // counterparty is the packed card number of the other side of a transfer, else 0
+    public void addTransaction(TransactionType type, long counterparty, long amount, long timestamp) {
+        history.append(timestamp, type, counterparty, amount, getFoldedBalance());
+    }
+
+    // Read-only view of the history as of this call; nothing is copied
+    public List<Transaction> getTransactionHistory() {
+        return history.snapshot();
+    }
+}
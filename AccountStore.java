@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+
+// Account records (PIN hash, balance, LSN of the last mutation applied) keyed by the
+// packed card number, see CardNumbers. Implementations may be read from any thread,
+// but callers serialise writes to any one card, as the engine's stripe locks do.
+// The journal stays the source of truth: the engine clears its store on startup and
+// refills it from the newest snapshot and the journal, so every store is a cache,
+// including the files and tables of the persistent ones.
+public interface AccountStore extends AutoCloseable {
+    // Returned by getBalance and getLastLsn for a card with no account
+    long NO_ACCOUNT = Long.MIN_VALUE;
+
+    long DEFAULT_MAPPED_CAPACITY = Long.getLong("atm.store.capacity", 1_000_000);
+    int DEFAULT_POOL_SIZE = Integer.getInteger("atm.store.pool", 4);
+
+    // Opens a store from a spec: "memory", "mapped:<file>" or a JDBC URL
+    static AccountStore open(String spec) throws IOException {
+        if (spec.equals("memory")) {
+            return new InMemoryAccountStore();
+        }
+        if (spec.startsWith("mapped:")) {
+            return new MappedAccountStore(Paths.get(spec.substring("mapped:".length())), DEFAULT_MAPPED_CAPACITY);
+        }
+        if (spec.startsWith("jdbc:")) {
+            return new JdbcAccountCache(spec, DEFAULT_POOL_SIZE);
+        }
+        throw new IllegalArgumentException("Unknown account store: " + spec);
+    }
+
+    // Adds the account unless the card already has one
+    boolean insert(long card, String pinHash, long balance, long lastLsn);
+
+    boolean contains(long card);
+
+    long getBalance(long card);
+
+    long getLastLsn(long card);
+
+    // null if the card has no account
+    String getPinHash(long card);
+
+    void setBalance(long card, long balance, long lastLsn);
+
+    void setPinHash(long card, String pinHash, long lastLsn);
+
+    long size();
+
+    void clear();
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,210 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Terminal side of the host link. Requests are pipelined on one connection: each is
+// tagged with a fresh STAN and written without waiting for earlier responses, and a
+// reader thread completes whichever request a response's STAN names. Requests
+// queued together are flushed in one write. The connection is opened on first use;
+// if it fails, every request still waiting on it fails and the next one reconnects.
+public class AtmClient implements AtmOperations, AutoCloseable {
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    private final InetSocketAddress host;
+    private final String terminalId; // null lets the host identify the terminal by address
+    private final ExecutorService writer;
+    private final AtomicInteger nextStan = new AtomicInteger();
+    private final AtomicInteger queuedWrites = new AtomicInteger();
+    private final ByteBuffer out = ByteBuffer.allocate(AtmMessage.MAX_FRAME_BYTES + Integer.BYTES);
+    private Connection connection; // writer thread only
+
+    public AtmClient(InetSocketAddress host) {
+        this(host, null);
+    }
+
+    public AtmClient(InetSocketAddress host, String terminalId) {
+        this.host = host;
+        this.terminalId = terminalId;
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "atm-client-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Parses host:port
+    public static InetSocketAddress parseAddress(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port but got " + hostAndPort);
+        }
+        return new InetSocketAddress(hostAndPort.substring(0, colon),
+                Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> login(String cardNumber, String pin) {
+        return login(terminalId, cardNumber, pin);
+    }
+
+    // Logs in on behalf of the named terminal, for clients that multiplex several
+    public CompletableFuture<AtmResult> login(String terminalId, String cardNumber, String pin) {
+        return exchange(AtmMessage.login(cardNumber, pin), terminalId, AtmMessage::toResult);
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> balance(String session) {
+        return exchange(AtmMessage.balance(session), AtmMessage::toResult);
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> withdraw(String session, long amount, long requestKey) {
+        return exchange(AtmMessage.withdraw(session, amount, requestKey), AtmMessage::toResult);
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> deposit(String session, long amount, long requestKey) {
+        return exchange(AtmMessage.deposit(session, amount, requestKey), AtmMessage::toResult);
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> transfer(String session, String toCardNumber, long amount, long requestKey) {
+        return exchange(AtmMessage.transfer(session, toCardNumber, amount, requestKey), AtmMessage::toResult);
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> changePin(String session, String currentPin, String newPin, String confirmPin,
+                                                  long requestKey) {
+        return exchange(AtmMessage.changePin(session, currentPin, newPin, confirmPin, requestKey),
+                AtmMessage::toResult);
+    }
+
+    @Override
+    public CompletableFuture<TransactionHistory> history(String session) {
+        return exchange(AtmMessage.history(session), AtmMessage::toHistory);
+    }
+
+    @Override
+    public CompletableFuture<Void> logout(String session) {
+        return exchange(AtmMessage.logout(session), response -> null);
+    }
+
+    @Override
+    public void close() {
+        writer.execute(() -> {
+            if (connection != null) {
+                connection.fail(new EOFException("Client closed"));
+            }
+        });
+        writer.shutdown();
+    }
+
+    private <T> CompletableFuture<T> exchange(AtmMessage request, Function<AtmMessage, T> reply) {
+        return exchange(request, terminalId, reply);
+    }
+
+    private <T> CompletableFuture<T> exchange(AtmMessage request, String terminalId, Function<AtmMessage, T> reply) {
+        CompletableFuture<AtmMessage> response = new CompletableFuture<>();
+        request.setStan(nextStan.incrementAndGet());
+        request.setTerminalId(terminalId);
+        queuedWrites.incrementAndGet();
+        writer.execute(() -> send(request, response));
+        return response.orTimeout(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).thenApply(reply);
+    }
+
+    // Runs on the writer thread only
+    private void send(AtmMessage request, CompletableFuture<AtmMessage> response) {
+        boolean last = queuedWrites.decrementAndGet() == 0;
+        try {
+            if (!response.isDone()) { // else it timed out while queued, and is not sent
+                if (connection == null || connection.failed) {
+                    connection = new Connection();
+                }
+                Connection current = connection;
+                int stan = request.getStan();
+                current.inFlight.put(stan, response);
+                response.whenComplete((m, e) -> current.inFlight.remove(stan));
+                out.clear();
+                request.encode(out);
+                current.out.write(out.array(), 0, out.position());
+            }
+            // Even when this request was dropped, the ones buffered before it must go out
+            if (last && connection != null && !connection.failed) {
+                connection.out.flush();
+            }
+        } catch (IOException e) {
+            response.completeExceptionally(e);
+            if (connection != null) {
+                connection.fail(e);
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+        private final Socket socket = new Socket();
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final Map<Integer, CompletableFuture<AtmMessage>> inFlight = new ConcurrentHashMap<>();
+        private volatile boolean failed;
+
+        Connection() throws IOException {
+            socket.connect(host, TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            in = new DataInputStream(socket.getInputStream());
+            Thread reader = new Thread(this, "atm-client-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > AtmMessage.MAX_FRAME_BYTES) {
+                        throw new ProtocolException("Bad frame length " + length);
+                    }
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    AtmMessage response = AtmMessage.decode(ByteBuffer.wrap(frame));
+                    if (response.isRequest()) {
+                        throw new ProtocolException("Host sent a request");
+                    }
+                    CompletableFuture<AtmMessage> waiting = inFlight.remove(response.getStan());
+                    if (waiting != null) {
+                        waiting.complete(response);
+                    } // else it already timed out
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void fail(IOException cause) {
+            failed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            for (CompletableFuture<AtmMessage> waiting : inFlight.values()) {
+                waiting.completeExceptionally(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,1001 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// UI-independent transaction engine; safe to call from many threads at once.
+// With a Journal attached every mutation is logged before it is applied, and the
+// engine rebuilds its accounts by replaying the journal when constructed. With a
+// SnapshotStore as well, startup loads the newest snapshot and replays only the
+// journal tail written after it. PINs are kept and journaled only as salted hashes.
+// Account records live in an AccountStore, in memory unless another one is given.
+public class AtmEngine implements AutoCloseable {
+    public static final int DEFAULT_LOCK_STRIPES = 1024;
+    // Terminal id used by callers that do not name one, such as the standalone GUI
+    public static final String LOCAL_TERMINAL = "local";
+
+    // Card number to account; the account's record is in store, its history here
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final AccountStore store;
+
+    // Balance mutations are guarded by a fixed pool of locks striped by card number.
+    // Transfers take their two stripes in index order, so they can never deadlock.
+    private final ReentrantLock[] stripes;
+    private final int stripeMask;
+
+    private final Journal journal; // null when running purely in memory
+    private final SnapshotStore snapshots; // null when snapshots are disabled
+    private final HistorySpillFile historyPages; // null keeps all history in memory
+    private final PinHasher pinHasher;
+    private final String decoyPinHash; // checked for unknown cards so timing does not reveal them
+    private final LoginThrottle loginThrottle = new LoginThrottle();
+    private final TerminalRateLimiter terminalLimiter = new TerminalRateLimiter();
+    private final TerminalRateLimiter addressLimiter = new TerminalRateLimiter(TerminalRateLimiter.DEFAULT_BUCKETS,
+            Double.parseDouble(System.getProperty("atm.limit.address.per.second",
+                    Double.toString(TerminalRateLimiter.DEFAULT_ADDRESS_PER_SECOND))),
+            Integer.getInteger("atm.limit.address.burst", TerminalRateLimiter.DEFAULT_ADDRESS_BURST));
+    private final VelocityLimits velocityLimits = new VelocityLimits();
+    private final IdempotencyCache idempotency = new IdempotencyCache();
+    private volatile FraudRule[] fraudRules = new FraudRule[0];
+    private volatile FraudPipeline fraudPipeline; // null when nothing scores transactions
+    private ScheduledExecutorService snapshotScheduler;
+
+    // Highest LSN written by the current thread's applyBatch, which waits for it once at the end
+    private final ThreadLocal<long[]> batchLsn = new ThreadLocal<>();
+
+    public AtmEngine() {
+        this(DEFAULT_LOCK_STRIPES);
+    }
+
+    public AtmEngine(int lockStripes) {
+        this(lockStripes, new PinHasher());
+    }
+
+    public AtmEngine(int lockStripes, PinHasher pinHasher) {
+        this(lockStripes, pinHasher, new InMemoryAccountStore());
+    }
+
+    public AtmEngine(int lockStripes, PinHasher pinHasher, AccountStore store) {
+        stripes = newStripes(lockStripes);
+        stripeMask = stripes.length - 1;
+        journal = null;
+        snapshots = null;
+        historyPages = null;
+        this.pinHasher = pinHasher;
+        decoyPinHash = pinHasher.hash("");
+        this.store = store;
+        store.clear();
+    }
+
+    public AtmEngine(Journal journal) throws IOException {
+        this(DEFAULT_LOCK_STRIPES, journal, null);
+    }
+
+    public AtmEngine(Journal journal, SnapshotStore snapshots) throws IOException {
+        this(DEFAULT_LOCK_STRIPES, journal, snapshots);
+    }
+
+    public AtmEngine(int lockStripes, Journal journal, SnapshotStore snapshots) throws IOException {
+        this(lockStripes, new PinHasher(), journal, snapshots);
+    }
+
+    public AtmEngine(int lockStripes, PinHasher pinHasher, Journal journal, SnapshotStore snapshots)
+            throws IOException {
+        this(lockStripes, pinHasher, new InMemoryAccountStore(), journal, snapshots);
+    }
+
+    public AtmEngine(int lockStripes, PinHasher pinHasher, AccountStore store, Journal journal,
+                     SnapshotStore snapshots) throws IOException {
+        stripes = newStripes(lockStripes);
+        stripeMask = stripes.length - 1;
+        this.journal = journal;
+        this.snapshots = snapshots;
+        this.historyPages = snapshots != null ? snapshots.getHistoryPages() : null;
+        this.pinHasher = pinHasher;
+        decoyPinHash = pinHasher.hash("");
+        this.store = store;
+        store.clear();
+
+        Recovery recovery = new Recovery();
+        Journal.Checkpoint from = snapshots != null ? snapshots.loadLatest(recovery) : null;
+        if (from == null) {
+            recovery.begin(); // nothing a failed snapshot load left behind may survive a full replay
+            if (historyPages != null) {
+                // Full replay rebuilds all history, so previously spilled pages are garbage
+                historyPages.reset();
+            }
+        }
+        journal.replay(recovery, from != null ? from : new Journal.Checkpoint(0, 0));
+    }
+
+    // Creates the account unless the card number is already in use
+    public boolean openAccount(String cardNumber, String pin, long balance) {
+        if (!CardNumbers.isValid(cardNumber)) {
+            throw new IllegalArgumentException("Card numbers must be 1 to " + CardNumbers.MAX_DIGITS + " digits");
+        }
+        if (accounts.containsKey(cardNumber)) {
+            return false; // skip the hashing cost; importAccount rechecks under the lock
+        }
+        return importAccount(cardNumber, pinHasher.hash(pin), balance);
+    }
+
+    // Creates an account whose PIN is already hashed, as when bulk loading accounts
+    // from another system, unless the card number is already in use
+    public boolean importAccount(String cardNumber, String pinHash, long balance) {
+        if (!CardNumbers.isValid(cardNumber)) {
+            throw new IllegalArgumentException("Card numbers must be 1 to " + CardNumbers.MAX_DIGITS + " digits");
+        }
+        if (!PinHasher.isHash(pinHash)) {
+            throw new IllegalArgumentException("PIN hash expected");
+        }
+        long lsn = 0;
+        ReentrantLock lock = lockStripe(stripeIndex(cardNumber));
+        try {
+            if (accounts.containsKey(cardNumber)) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (journal != null) {
+                lsn = journal.appendOpen(now, cardNumber, pinHash, balance);
+            }
+            accounts.put(cardNumber, newAccount(cardNumber, pinHash, balance, now, lsn));
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(lsn);
+        return true;
+    }
+
+    public Account getAccount(String cardNumber) {
+        return accounts.get(cardNumber);
+    }
+
+    public VelocityLimits getVelocityLimits() {
+        return velocityLimits;
+    }
+
+    public TerminalRateLimiter getTerminalRateLimiter() {
+        return terminalLimiter;
+    }
+
+    public TerminalRateLimiter getAddressRateLimiter() {
+        return addressLimiter;
+    }
+
+    public IdempotencyCache getIdempotencyCache() {
+        return idempotency;
+    }
+
+    // Lets credits to a heavily credited account, such as a merchant's, land on
+    // sub-balances instead of queueing on its lock; see CreditShards. Returns false if
+    // there is no such card. The mode lasts until the engine is closed.
+    public boolean shardCredits(String cardNumber) {
+        Account account = accounts.get(cardNumber);
+        if (account == null) {
+            return false;
+        }
+        ReentrantLock lock = lockStripe(stripeIndex(cardNumber));
+        try {
+            if (account.getCreditShards() == null) {
+                account.setCreditShards(new CreditShards());
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    // Every committed withdrawal, deposit and transfer is published to the pipeline
+    public void setFraudPipeline(FraudPipeline pipeline) {
+        this.fraudPipeline = pipeline;
+    }
+
+    // Adds a rule that can refuse withdrawals and transfers inline
+    public synchronized void addFraudRule(FraudRule rule) {
+        FraudRule[] rules = Arrays.copyOf(fraudRules, fraudRules.length + 1);
+        rules[rules.length - 1] = rule;
+        fraudRules = rules;
+    }
+
+    public AtmResult login(String cardNumber, String pin) {
+        return login(LOCAL_TERMINAL, cardNumber, pin);
+    }
+
+    // CPU-bound: verifies the PIN against its hash, see AtmService for where it runs.
+    // Attempts are rate limited per terminal, and repeated failures lock the card.
+    public AtmResult login(String terminalId, String cardNumber, String pin) {
+        return login(terminalId, null, cardNumber, pin);
+    }
+
+    // address is where a network terminal connected from, or null for local callers; see allowAttempt
+    public AtmResult login(String terminalId, String address, String cardNumber, String pin) {
+        AtmEvents.Login event = new AtmEvents.Login();
+        event.begin();
+        AtmResult result = verifyLogin(terminalId, address, cardNumber, pin);
+        AtmEvents.commit(event, terminalId, cardNumber, result);
+        return result;
+    }
+
+    private AtmResult verifyLogin(String terminalId, String address, String cardNumber, String pin) {
+        if (!allowAttempt(terminalId, address)) {
+            return rateLimited();
+        }
+        Account account = accounts.get(cardNumber);
+        if (account == null) {
+            pinHasher.verify(pin, decoyPinHash);
+            return cardNotRecognized();
+        }
+        AtmResult locked = checkLocked(account);
+        if (locked != null) {
+            return locked;
+        }
+        if (!pinHasher.verify(pin, account.getPinHash())) {
+            return pinFailure(account, AtmResult.failure(AtmResult.Status.INVALID_PIN, "Invalid PIN. Please try again."));
+        }
+        loginThrottle.recordSuccess(account.getPackedCardNumber());
+        return AtmResult.ok(account.getBalance());
+    }
+
+    // The newest count history entries, oldest first, for mini statements and exports
+    public List<Transaction> recentTransactions(String cardNumber, int count) {
+        TransactionHistory history = history(cardNumber);
+        return history == null ? Collections.<Transaction>emptyList() : history.last(count);
+    }
+
+    // The card's history including any credits still waiting in its shards, or null if there is no such card
+    public TransactionHistory history(String cardNumber) {
+        Account account = accounts.get(cardNumber);
+        if (account == null) {
+            return null;
+        }
+        if (account.getCreditShards() != null) {
+            foldCredits(account);
+        }
+        return account.getHistory();
+    }
+
+    public AtmResult balance(String cardNumber) {
+        Account account = accounts.get(cardNumber);
+        if (account == null) {
+            return cardNotRecognized();
+        }
+        return AtmResult.ok(account.getBalance());
+    }
+
+    public AtmResult withdraw(String cardNumber, long amount) {
+        return withdraw(cardNumber, amount, 0);
+    }
+
+    // requestKey identifies the transaction so a retry is not applied twice, see
+    // IdempotencyCache; 0 if the caller sends none. Likewise for the calls below.
+    public AtmResult withdraw(String cardNumber, long amount, long requestKey) {
+        AtmEvents.Transaction event = new AtmEvents.Transaction();
+        event.begin();
+        AtmResult result = applyWithdrawal(cardNumber, amount, requestKey);
+        AtmEvents.commit(event, "withdraw", cardNumber, amount, result);
+        return result;
+    }
+
+    public AtmResult deposit(String cardNumber, long amount) {
+        return deposit(cardNumber, amount, 0);
+    }
+
+    public AtmResult deposit(String cardNumber, long amount, long requestKey) {
+        AtmEvents.Transaction event = new AtmEvents.Transaction();
+        event.begin();
+        AtmResult result = applyDeposit(cardNumber, amount, requestKey);
+        AtmEvents.commit(event, "deposit", cardNumber, amount, result);
+        return result;
+    }
+
+    public AtmResult transfer(String fromCardNumber, String toCardNumber, long amount) {
+        return transfer(fromCardNumber, toCardNumber, amount, 0);
+    }
+
+    public AtmResult transfer(String fromCardNumber, String toCardNumber, long amount, long requestKey) {
+        AtmEvents.Transaction event = new AtmEvents.Transaction();
+        event.begin();
+        AtmResult result = applyTransfer(fromCardNumber, toCardNumber, amount, requestKey);
+        AtmEvents.commit(event, "transfer", fromCardNumber, amount, result);
+        return result;
+    }
+
+    // The original result if this withdrawal was already committed under requestKey, else null
+    public AtmResult replayWithdrawal(String cardNumber, long amount, long requestKey) {
+        Account account = accounts.get(cardNumber);
+        return account == null ? null
+                : replayCommitted(account, requestKey, IdempotencyCache.fingerprint(Journal.WITHDRAWAL, 0, amount));
+    }
+
+    private AtmResult applyWithdrawal(String cardNumber, long amount, long requestKey) {
+        Account account = accounts.get(cardNumber);
+        if (account == null) {
+            return cardNotRecognized();
+        }
+        if (amount <= 0) {
+            return invalidAmount();
+        }
+        long fingerprint = IdempotencyCache.fingerprint(Journal.WITHDRAWAL, 0, amount);
+        long lsn = 0;
+        AtmResult result;
+        ReentrantLock lock = lockStripe(stripeIndex(cardNumber));
+        try {
+            long now = System.currentTimeMillis();
+            result = replay(account, requestKey, fingerprint, now);
+            if (result != null) {
+                lsn = account.getLastLsn(); // the original may still be waiting for its group commit
+            } else {
+                fold(account);
+                long balance = account.getBalance();
+                if (balance < amount) {
+                    return insufficientFunds();
+                }
+                AtmResult refused = refuse(TransactionType.WITHDRAWAL, account, 0, amount, balance, now);
+                if (refused != null) {
+                    return refused;
+                }
+                if (journal != null) {
+                    lsn = journal.appendWithdrawal(now, cardNumber, amount, balance - amount, requestKey);
+                }
+                account.withdraw(amount, now, lsn);
+                velocityLimits.record(account, 0, amount, now);
+                remember(account, requestKey, fingerprint, now);
+                publish(TransactionType.WITHDRAWAL, account, 0, amount, now);
+                result = AtmResult.ok(account.getBalance());
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(lsn);
+        return result;
+    }
+
+    private AtmResult applyDeposit(String cardNumber, long amount, long requestKey) {
+        Account account = accounts.get(cardNumber);
+        if (account == null) {
+            return cardNotRecognized();
+        }
+        if (amount <= 0) {
+            return invalidAmount();
+        }
+        CreditShards shards = account.getCreditShards();
+        if (shards != null && requestKey == 0) {
+            return depositToShard(account, shards.shardForThread(), amount);
+        }
+        long fingerprint = IdempotencyCache.fingerprint(Journal.DEPOSIT, 0, amount);
+        long lsn = 0;
+        AtmResult result;
+        ReentrantLock lock = lockStripe(stripeIndex(cardNumber));
+        try {
+            long now = System.currentTimeMillis();
+            result = replay(account, requestKey, fingerprint, now);
+            if (result != null) {
+                lsn = account.getLastLsn();
+            } else {
+                fold(account); // keeps the history in LSN order
+                if (journal != null) {
+                    lsn = journal.appendDeposit(now, cardNumber, amount, account.getBalance() + amount, requestKey);
+                }
+                account.deposit(amount, now, lsn);
+                remember(account, requestKey, fingerprint, now);
+                publish(TransactionType.DEPOSIT, account, 0, amount, now);
+                result = AtmResult.ok(account.getBalance());
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(lsn);
+        return result;
+    }
+
+    private AtmResult applyTransfer(String fromCardNumber, String toCardNumber, long amount, long requestKey) {
+        Account from = accounts.get(fromCardNumber);
+        if (from == null) {
+            return cardNotRecognized();
+        }
+        Account to = accounts.get(toCardNumber);
+        if (to == null) {
+            return AtmResult.failure(AtmResult.Status.RECIPIENT_NOT_FOUND, "Recipient account not found.");
+        }
+        if (from == to) {
+            return AtmResult.failure(AtmResult.Status.SAME_ACCOUNT, "Cannot transfer to the same account.");
+        }
+        if (amount <= 0) {
+            return invalidAmount();
+        }
+
+        long fingerprint = IdempotencyCache.fingerprint(Journal.TRANSFER, to.getPackedCardNumber(), amount);
+        CreditShards toShards = to.getCreditShards();
+        if (toShards != null) {
+            return transferToShard(from, to, toShards.shardForThread(), amount, requestKey, fingerprint);
+        }
+        int fromStripe = stripeIndex(fromCardNumber);
+        int toStripe = stripeIndex(toCardNumber);
+        ReentrantLock first = lockStripe(Math.min(fromStripe, toStripe));
+        long lsn = 0;
+        AtmResult result;
+        try {
+            ReentrantLock second = lockStripe(Math.max(fromStripe, toStripe));
+            try {
+                long now = System.currentTimeMillis();
+                result = replay(from, requestKey, fingerprint, now);
+                if (result != null) {
+                    lsn = from.getLastLsn();
+                } else {
+                    fold(from);
+                    fold(to); // in case its credits were sharded after the check above
+                    long fromBalance = from.getBalance();
+                    if (fromBalance < amount) {
+                        return insufficientFunds();
+                    }
+                    AtmResult refused = refuse(TransactionType.TRANSFER_OUT, from, to.getPackedCardNumber(), amount,
+                            fromBalance, now);
+                    if (refused != null) {
+                        return refused;
+                    }
+                    if (journal != null) {
+                        lsn = journal.appendTransfer(now, fromCardNumber, toCardNumber, amount,
+                                fromBalance - amount, to.getBalance() + amount, requestKey);
+                    }
+                    applyTransferOut(from, to.getPackedCardNumber(), amount, now, lsn);
+                    applyTransferIn(to, from.getPackedCardNumber(), amount, now, lsn);
+                    velocityLimits.record(from, to.getPackedCardNumber(), amount, now);
+                    remember(from, requestKey, fingerprint, now);
+                    publish(TransactionType.TRANSFER_OUT, from, to.getPackedCardNumber(), amount, now);
+                    result = AtmResult.ok(from.getBalance());
+                }
+            } finally {
+                second.unlock();
+            }
+        } finally {
+            first.unlock();
+        }
+        awaitDurable(lsn);
+        return result;
+    }
+
+    // A transfer to an account with sharded credits: only the payer's stripe is taken,
+    // and the credit waits in one of the recipient's shards until it is folded
+    private AtmResult transferToShard(Account from, Account to, CreditShards.Shard shard, long amount,
+                                      long requestKey, long fingerprint) {
+        long lsn = 0;
+        AtmResult result;
+        ReentrantLock lock = lockStripe(stripeIndex(from.getCardNumber()));
+        try {
+            long now = System.currentTimeMillis();
+            result = replay(from, requestKey, fingerprint, now);
+            if (result != null) {
+                lsn = from.getLastLsn();
+            } else {
+                fold(from);
+                long fromBalance = from.getBalance();
+                if (fromBalance < amount) {
+                    return insufficientFunds();
+                }
+                AtmResult refused = refuse(TransactionType.TRANSFER_OUT, from, to.getPackedCardNumber(), amount,
+                        fromBalance, now);
+                if (refused != null) {
+                    return refused;
+                }
+                shard.lock.lock();
+                try {
+                    if (journal != null) {
+                        // The recipient's balance after is the total this credit saw; credits
+                        // on other shards may be journaled in between
+                        lsn = journal.appendTransfer(now, from.getCardNumber(), to.getCardNumber(), amount,
+                                fromBalance - amount, to.getBalance() + amount, requestKey);
+                    }
+                    shard.add(lsn, now, TransactionType.TRANSFER_IN, from.getPackedCardNumber(), amount);
+                } finally {
+                    shard.lock.unlock();
+                }
+                applyTransferOut(from, to.getPackedCardNumber(), amount, now, lsn);
+                velocityLimits.record(from, to.getPackedCardNumber(), amount, now);
+                remember(from, requestKey, fingerprint, now);
+                publish(TransactionType.TRANSFER_OUT, from, to.getPackedCardNumber(), amount, now);
+                result = AtmResult.ok(from.getBalance());
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(lsn);
+        if (shard.isFull()) {
+            foldCredits(to);
+        }
+        return result;
+    }
+
+    private AtmResult depositToShard(Account account, CreditShards.Shard shard, long amount) {
+        long now = System.currentTimeMillis();
+        long lsn = 0;
+        shard.lock.lock();
+        try {
+            if (journal != null) {
+                lsn = journal.appendDeposit(now, account.getCardNumber(), amount, account.getBalance() + amount, 0);
+            }
+            shard.add(lsn, now, TransactionType.DEPOSIT, 0, amount);
+        } finally {
+            shard.lock.unlock();
+        }
+        publish(TransactionType.DEPOSIT, account, 0, amount, now);
+        AtmResult result = AtmResult.ok(account.getBalance());
+        awaitDurable(lsn);
+        if (shard.isFull()) {
+            foldCredits(account);
+        }
+        return result;
+    }
+
+    public AtmResult changePin(String cardNumber, String currentPin, String newPin, String confirmPin) {
+        return changePin(LOCAL_TERMINAL, cardNumber, currentPin, newPin, confirmPin);
+    }
+
+    public AtmResult changePin(String terminalId, String cardNumber, String currentPin, String newPin,
+                               String confirmPin) {
+        return changePin(terminalId, null, cardNumber, currentPin, newPin, confirmPin, 0);
+    }
+
+    // Hashing happens outside the lock; the change only applies if no other change won meanwhile.
+    // The current PIN check counts towards the same lockout as logins. A retried change
+    // is answered before the PIN check, since the PIN it was sent with is no longer current.
+    public AtmResult changePin(String terminalId, String address, String cardNumber, String currentPin,
+                               String newPin, String confirmPin, long requestKey) {
+        if (!allowAttempt(terminalId, address)) {
+            return rateLimited();
+        }
+        Account account = accounts.get(cardNumber);
+        if (account == null) {
+            return cardNotRecognized();
+        }
+        long fingerprint = IdempotencyCache.fingerprint(Journal.PIN_CHANGE, 0, 0);
+        AtmResult replayed = replayCommitted(account, requestKey, fingerprint);
+        if (replayed != null) {
+            return replayed;
+        }
+        AtmResult locked = checkLocked(account);
+        if (locked != null) {
+            return locked;
+        }
+        String currentHash = account.getPinHash();
+        if (!pinHasher.verify(currentPin, currentHash)) {
+            return pinFailure(account, invalidCurrentPin());
+        }
+        loginThrottle.recordSuccess(account.getPackedCardNumber());
+        if (newPin.length() != 4 || !newPin.matches("\\d+")) {
+            return AtmResult.failure(AtmResult.Status.INVALID_NEW_PIN, "New PIN must be exactly 4 digits.");
+        }
+        if (!newPin.equals(confirmPin)) {
+            return AtmResult.failure(AtmResult.Status.PIN_MISMATCH, "New PIN and confirmation do not match.");
+        }
+        String newHash = pinHasher.hash(newPin);
+        long lsn = 0;
+        AtmResult result;
+        ReentrantLock lock = lockStripe(stripeIndex(cardNumber));
+        try {
+            long now = System.currentTimeMillis();
+            result = replay(account, requestKey, fingerprint, now);
+            if (result != null) {
+                lsn = account.getLastLsn();
+            } else {
+                if (!account.getPinHash().equals(currentHash)) {
+                    return invalidCurrentPin();
+                }
+                if (journal != null) {
+                    lsn = journal.appendPinChange(now, cardNumber, newHash, requestKey);
+                }
+                account.setPinHash(newHash, lsn);
+                remember(account, requestKey, fingerprint, now);
+                result = AtmResult.ok(account.getBalance());
+            }
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(lsn);
+        return result;
+    }
+
+    // Writes a snapshot without pausing transactions. Each account is copied under its
+    // own stripe lock together with the LSN of the last record applied to it, so replay
+    // can skip exactly the journal records the copy already reflects.
+    public synchronized void snapshot() throws IOException {
+        if (journal == null || snapshots == null) {
+            throw new IllegalStateException("Snapshots need both a journal and a snapshot store");
+        }
+        Journal.Checkpoint checkpoint = journal.checkpoint();
+        // Every record up to the checkpoint was appended under a stripe lock; cycling
+        // through the stripes once makes sure all of them have also been applied
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+            stripe.unlock();
+        }
+
+        long newestLsn = checkpoint.getLsn();
+        try (SnapshotStore.Writer writer = snapshots.begin(checkpoint)) {
+            for (Account account : accounts.values()) {
+                String pinHash;
+                long balance;
+                long lastLsn;
+                int historySize;
+                long[] recentRequests;
+                long[] velocity;
+                ReentrantLock lock = stripeFor(account.getCardNumber());
+                lock.lock();
+                try {
+                    fold(account); // a snapshot's balance and last LSN must cover the same records
+                    pinHash = account.getPinHash();
+                    balance = account.getFoldedBalance();
+                    lastLsn = account.getLastLsn();
+                    historySize = account.getHistory().size();
+                    long now = System.currentTimeMillis();
+                    recentRequests = idempotency.live(account, now);
+                    velocity = velocityLimits.export(account, now);
+                } finally {
+                    lock.unlock();
+                }
+                // History rows below historySize never change, so they are copied unlocked
+                writer.account(account.getCardNumber(), pinHash, balance, lastLsn, account.getHistory(), historySize,
+                        recentRequests, velocity);
+                newestLsn = Math.max(newestLsn, lastLsn);
+            }
+            // The snapshot must never get ahead of the journal that will be replayed after it
+            journal.awaitDurable(newestLsn);
+            historyPages.force();
+            writer.commit();
+        }
+    }
+
+    public synchronized void scheduleSnapshots(long interval, TimeUnit unit) {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+        }
+        snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                snapshot();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }, interval, interval, unit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (snapshotScheduler != null) {
+                snapshotScheduler.shutdownNow();
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (snapshots != null) {
+            snapshots.close();
+        }
+        store.close();
+    }
+
+    // Transfer legs are applied separately so replay can redo just the leg a snapshot missed
+    private static void applyTransferOut(Account from, long toCardNumber, long amount, long timestamp, long lsn) {
+        from.withdraw(amount, timestamp, lsn);
+        from.addTransaction(TransactionType.TRANSFER_OUT, toCardNumber, -amount, timestamp);
+    }
+
+    static void applyTransferIn(Account to, long fromCardNumber, long amount, long timestamp, long lsn) {
+        to.deposit(amount, timestamp, lsn);
+        to.addTransaction(TransactionType.TRANSFER_IN, fromCardNumber, amount, timestamp);
+    }
+
+    // Adds the record to the store and returns its account, holding just the opening row
+    private Account newAccount(String cardNumber, String pinHash, long balance, long openedAt, long lsn) {
+        store.insert(CardNumbers.pack(cardNumber), pinHash, balance, lsn);
+        Account account = new Account(cardNumber, store, new TransactionHistory(historyPages));
+        account.addTransaction(TransactionType.OPENING, 0, balance, openedAt);
+        return account;
+    }
+
+    // Runs calls back to back on this thread and waits for durability once, after the
+    // last one, so all their journal records are confirmed by a single group commit
+    public <T> List<T> applyBatch(List<? extends Function<AtmEngine, ? extends T>> calls) {
+        long[] maxLsn = new long[1];
+        List<T> results = new ArrayList<>(calls.size());
+        batchLsn.set(maxLsn);
+        try {
+            for (Function<AtmEngine, ? extends T> call : calls) {
+                results.add(call.apply(this));
+            }
+        } finally {
+            batchLsn.remove();
+            awaitDurable(maxLsn[0]);
+        }
+        return results;
+    }
+
+    // The original result if the card already committed requestKey, else null; called
+    // with the card's stripe held
+    private AtmResult replay(Account account, long requestKey, long fingerprint, long now) {
+        return requestKey == 0 ? null : idempotency.replay(account, requestKey, fingerprint, now);
+    }
+
+    private void remember(Account account, long requestKey, long fingerprint, long now) {
+        if (requestKey != 0) {
+            idempotency.record(account, requestKey, fingerprint, account.getBalance(), now);
+        }
+    }
+
+    // Like replay, for calls that must know before taking the lock; waits until the
+    // original is durable before answering for it
+    private AtmResult replayCommitted(Account account, long requestKey, long fingerprint) {
+        if (requestKey == 0) {
+            return null;
+        }
+        AtmResult replayed;
+        long lsn;
+        ReentrantLock lock = lockStripe(stripeIndex(account.getCardNumber()));
+        try {
+            replayed = idempotency.replay(account, requestKey, fingerprint, System.currentTimeMillis());
+            lsn = account.getLastLsn();
+        } finally {
+            lock.unlock();
+        }
+        if (replayed != null) {
+            awaitDurable(lsn);
+        }
+        return replayed;
+    }
+
+    // Moves credits waiting in the account's shards into its balance; called with its stripe held
+    private static void fold(Account account) {
+        CreditShards shards = account.getCreditShards();
+        if (shards != null) {
+            shards.fold(account);
+        }
+    }
+
+    private void foldCredits(Account account) {
+        ReentrantLock lock = lockStripe(stripeIndex(account.getCardNumber()));
+        try {
+            fold(account);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Why a debit may not go ahead, from the velocity limits or an inline fraud rule, or null
+    private AtmResult refuse(TransactionType type, Account account, long counterparty, long amount, long balance,
+                             long now) {
+        AtmResult refused = velocityLimits.check(account, counterparty, amount, now);
+        if (refused != null) {
+            return refused;
+        }
+        for (FraudRule rule : fraudRules) {
+            refused = rule.check(type, account.getPackedCardNumber(), counterparty, amount, balance);
+            if (refused != null) {
+                return refused;
+            }
+        }
+        return null;
+    }
+
+    // Hands a committed transaction to the fraud pipeline, if any; never blocks
+    private void publish(TransactionType type, Account account, long counterparty, long amount, long now) {
+        FraudPipeline pipeline = fraudPipeline;
+        if (pipeline != null) {
+            pipeline.publish(type, account.getPackedCardNumber(), counterparty, amount, account.getBalance(), now);
+        }
+    }
+
+    // Waits, outside any account lock, for the group commit covering lsn
+    private void awaitDurable(long lsn) {
+        if (lsn > 0) {
+            long[] batch = batchLsn.get();
+            if (batch != null) {
+                batch[0] = Math.max(batch[0], lsn);
+            } else {
+                journal.awaitDurable(lsn);
+            }
+        }
+    }
+
+    private static ReentrantLock[] newStripes(int lockStripes) {
+        int size = Integer.highestOneBit(Math.max(1, lockStripes - 1) << 1);
+        ReentrantLock[] locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private int stripeIndex(String cardNumber) {
+        int h = cardNumber.hashCode();
+        return (h ^ (h >>> 16)) & stripeMask;
+    }
+
+    private ReentrantLock stripeFor(String cardNumber) {
+        return stripes[stripeIndex(cardNumber)];
+    }
+
+    // Locks the stripe, recording a LockWait event only when another thread holds it
+    private ReentrantLock lockStripe(int index) {
+        ReentrantLock lock = stripes[index];
+        if (!lock.tryLock()) {
+            AtmEvents.LockWait event = new AtmEvents.LockWait();
+            event.begin();
+            lock.lock();
+            if (event.shouldCommit()) {
+                event.stripe = index;
+                event.commit();
+            }
+        }
+        return lock;
+    }
+
+    private static AtmResult cardNotRecognized() {
+        return AtmResult.failure(AtmResult.Status.CARD_NOT_RECOGNIZED, "Card not recognized. Please try again.");
+    }
+
+    private static AtmResult invalidAmount() {
+        return AtmResult.failure(AtmResult.Status.INVALID_AMOUNT, "Please enter a valid amount.");
+    }
+
+    private AtmResult checkLocked(Account account) {
+        if (loginThrottle.lockedUntil(account.getPackedCardNumber(), System.currentTimeMillis()) != 0) {
+            return cardLocked();
+        }
+        return null;
+    }
+
+    // Counts a wrong PIN; the failure that reaches the limit reports the lock instead
+    private AtmResult pinFailure(Account account, AtmResult failure) {
+        return loginThrottle.recordFailure(account.getPackedCardNumber(), System.currentTimeMillis())
+                ? cardLocked() : failure;
+    }
+
+    private static AtmResult cardLocked() {
+        return AtmResult.failure(AtmResult.Status.CARD_LOCKED,
+                "Too many incorrect PIN attempts. This card is locked, please try again later.");
+    }
+
+    // Charges a PIN attempt to its terminal's bucket. A network terminal names itself, so
+    // its bucket is keyed on its address as well, and the address has a budget of its own.
+    private boolean allowAttempt(String terminalId, String address) {
+        long now = System.nanoTime();
+        if (address == null) {
+            return terminalLimiter.tryAcquire(terminalId, now);
+        }
+        return terminalLimiter.tryAcquire(address + '/' + terminalId, now) && addressLimiter.tryAcquire(address, now);
+    }
+
+    private static AtmResult rateLimited() {
+        return AtmResult.failure(AtmResult.Status.RATE_LIMITED,
+                "Too many attempts from this ATM. Please wait a moment and try again.");
+    }
+
+    private static AtmResult invalidCurrentPin() {
+        return AtmResult.failure(AtmResult.Status.INVALID_PIN, "Current PIN is incorrect.");
+    }
+
+    private static AtmResult insufficientFunds() {
+        return AtmResult.failure(AtmResult.Status.INSUFFICIENT_FUNDS, "Insufficient funds.");
+    }
+
+    // Rebuilds the account map while the engine is being constructed: first from the
+    // snapshot, then from journal records newer than what each account already reflects
+    private class Recovery implements Journal.Handler, SnapshotStore.Loader {
+        @Override
+        public void begin() {
+            accounts.clear();
+            store.clear();
+        }
+
+        @Override
+        public void account(String cardNumber, String pinHash, long balance, long lastLsn, TransactionHistory history,
+                            long[] recentRequests, long[] velocity) {
+            store.insert(CardNumbers.pack(cardNumber), hashed(pinHash), balance, lastLsn);
+            Account account = new Account(cardNumber, store, history);
+            accounts.put(cardNumber, account);
+            if (recentRequests != null) {
+                for (int i = 0; i < recentRequests.length; i += IdempotencyCache.FIELDS) {
+                    idempotency.record(account, recentRequests[i], recentRequests[i + 1], recentRequests[i + 3],
+                            recentRequests[i + 2]);
+                }
+            }
+            if (velocity != null) {
+                velocityLimits.restore(account, velocity);
+            }
+        }
+
+        @Override
+        public void open(long lsn, long timestamp, String cardNumber, String pinHash, long balance) {
+            if (!accounts.containsKey(cardNumber)) {
+                accounts.put(cardNumber, newAccount(cardNumber, hashed(pinHash), balance, timestamp, lsn));
+            }
+        }
+
+        @Override
+        public void deposit(long lsn, long timestamp, String cardNumber, long amount, long balanceAfter,
+                            long requestKey) {
+            Account account = pending(cardNumber, lsn);
+            if (account != null) {
+                account.deposit(amount, timestamp, lsn);
+            }
+            remembered(cardNumber, requestKey, IdempotencyCache.fingerprint(Journal.DEPOSIT, 0, amount), balanceAfter,
+                    timestamp);
+        }
+
+        @Override
+        public void withdrawal(long lsn, long timestamp, String cardNumber, long amount, long balanceAfter,
+                               long requestKey) {
+            Account account = pending(cardNumber, lsn);
+            if (account != null) {
+                account.withdraw(amount, timestamp, lsn);
+                // Debits replayed from the journal refill the limit windows; older ones are ignored.
+                // Those the snapshot already reflects are in the windows it restored.
+                velocityLimits.record(account, 0, amount, timestamp);
+            }
+            remembered(cardNumber, requestKey, IdempotencyCache.fingerprint(Journal.WITHDRAWAL, 0, amount),
+                    balanceAfter, timestamp);
+        }
+
+        @Override
+        public void transfer(long lsn, long timestamp, String fromCardNumber, String toCardNumber, long amount,
+                             long fromBalanceAfter, long toBalanceAfter, long requestKey) {
+            Account from = pending(fromCardNumber, lsn);
+            if (from != null) {
+                applyTransferOut(from, CardNumbers.pack(toCardNumber), amount, timestamp, lsn);
+                velocityLimits.record(from, CardNumbers.pack(toCardNumber), amount, timestamp);
+            }
+            Account to = pending(toCardNumber, lsn);
+            if (to != null) {
+                applyTransferIn(to, CardNumbers.pack(fromCardNumber), amount, timestamp, lsn);
+            }
+            remembered(fromCardNumber, requestKey,
+                    IdempotencyCache.fingerprint(Journal.TRANSFER, CardNumbers.pack(toCardNumber), amount),
+                    fromBalanceAfter, timestamp);
+        }
+
+        @Override
+        public void pinChange(long lsn, long timestamp, String cardNumber, String pinHash, long requestKey) {
+            Account account = pending(cardNumber, lsn);
+            if (account != null) {
+                account.setPinHash(hashed(pinHash), lsn);
+            }
+            // The record has no balance; the one as of this point of the replay stands in
+            remembered(cardNumber, requestKey, IdempotencyCache.fingerprint(Journal.PIN_CHANGE, 0, 0),
+                    accounts.get(cardNumber).getBalance(), timestamp);
+        }
+
+        // Keys replayed from the journal refill the idempotency cache; expired ones are ignored
+        private void remembered(String cardNumber, long requestKey, long fingerprint, long balanceAfter,
+                                long timestamp) {
+            if (requestKey != 0) {
+                idempotency.record(accounts.get(cardNumber), requestKey, fingerprint, balanceAfter, timestamp);
+            }
+        }
+
+        // Journals and snapshots written before PINs were hashed hold them in plain text
+        private String hashed(String stored) {
+            return PinHasher.isHash(stored) ? stored : pinHasher.hash(stored);
+        }
+
+        // Returns the account if the record at lsn still has to be applied to it
+        private Account pending(String cardNumber, long lsn) {
+            Account account = accounts.get(cardNumber);
+            if (account == null) {
+                throw new IllegalStateException("Journal LSN " + lsn + " references unknown card " + cardNumber);
+            }
+            return lsn > account.getLastLsn() ? account : null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+import java.security.SecureRandom;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder events for the engine's hot paths, so a latency spike in a
+// recording can be lined up against GC pauses, safepoints and file I/O. Start one with
+// -XX:StartFlightRecording or jcmd <pid> JFR.start and open it in JDK Mission Control
+// or with "jfr print --events atm.Transaction". Each event is created and begun
+// unconditionally, but its fields are only filled in when shouldCommit() says the
+// event is enabled and over its threshold; with JFR off the JIT removes the object
+// and the check, so the instrumented paths cost nothing.
+//
+// Cards appear only as a keyed hash that is stable within one run of the process, so
+// a recording can follow one card's activity without exposing card numbers.
+public final class AtmEvents {
+    private static final long CARD_KEY = new SecureRandom().nextLong();
+
+    private AtmEvents() {
+    }
+
+    @Name("atm.Transaction")
+    @Label("ATM Transaction")
+    @Category({"ATM", "Engine"})
+    @Description("A withdrawal, deposit or transfer, including lock waits and the journal commit wait")
+    @StackTrace(false)
+    public static final class Transaction extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Card Hash")
+        long cardHash;
+
+        @Label("Amount Bucket")
+        @Description("Amount rounded down to a power of two, in paise")
+        long amountBucket;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("atm.Login")
+    @Label("ATM Login")
+    @Category({"ATM", "Engine"})
+    @Description("A login attempt, including PIN verification")
+    @StackTrace(false)
+    public static final class Login extends Event {
+        @Label("Terminal")
+        String terminal;
+
+        @Label("Card Hash")
+        long cardHash;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("atm.JournalFlush")
+    @Label("Journal Flush")
+    @Category({"ATM", "Journal"})
+    @Description("One group commit: writing a batch of journal records and forcing it to disk")
+    @StackTrace(false)
+    public static final class JournalFlush extends Event {
+        @Label("Records")
+        int records;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Forced")
+        boolean forced;
+    }
+
+    @Name("atm.LockWait")
+    @Label("Account Lock Wait")
+    @Category({"ATM", "Engine"})
+    @Description("Time spent waiting for an account lock stripe held by another thread")
+    public static final class LockWait extends Event {
+        @Label("Stripe")
+        int stripe;
+    }
+
+    static void commit(Transaction event, String operation, String cardNumber, long amount, AtmResult result) {
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.cardHash = cardHash(cardNumber);
+            event.amountBucket = amount > 0 ? Long.highestOneBit(amount) : 0;
+            event.outcome = result.getStatus().name();
+            event.commit();
+        }
+    }
+
+    static void commit(Login event, String terminalId, String cardNumber, AtmResult result) {
+        if (event.shouldCommit()) {
+            event.terminal = terminalId;
+            event.cardHash = cardHash(cardNumber);
+            event.outcome = result.getStatus().name();
+            event.commit();
+        }
+    }
+
+    static long cardHash(String cardNumber) {
+        long h = CARD_KEY;
+        for (int i = 0; i < cardNumber.length(); i++) {
+            h = (h ^ cardNumber.charAt(i)) * 0x100000001B3L;
+        }
+        // SplitMix64 finalizer, so cards that differ in one digit get unrelated hashes
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// One request or response on the terminal-to-host link, laid out in the spirit of
+// ISO 8583: [int length][short MTI][int STAN][short bitmap] and then only the fields
+// whose bit is set, in bit order. The MTI says whether it is an authorization or a
+// financial message and whether it is a request or a response; the processing code
+// says which operation. A response echoes the request's STAN so the terminal can
+// match it. Login carries the card and PIN and its response the new session token;
+// every later request carries only the session token. Withdrawals, deposits,
+// transfers and PIN changes also carry the terminal's idempotency key for the
+// transaction, which stays the same when the request is sent again. Strings are
+// length-prefixed UTF-8 of at most 255 bytes.
+public final class AtmMessage {
+    public static final int MAX_FRAME_BYTES = 1 << 16;
+    public static final int MAX_HISTORY_ROWS = 100;
+
+    // Message type indicators
+    public static final int AUTHORIZATION_REQUEST = 0x0100;
+    public static final int FINANCIAL_REQUEST = 0x0200;
+    private static final int RESPONSE = 0x0010;
+
+    // Processing codes
+    public static final int WITHDRAWAL = 0x01;
+    public static final int DEPOSIT = 0x21;
+    public static final int BALANCE_INQUIRY = 0x31;
+    public static final int MINI_STATEMENT = 0x38;
+    public static final int TRANSFER = 0x40;
+    public static final int LOGIN = 0x90;
+    public static final int PIN_CHANGE = 0x96;
+    public static final int LOGOUT = 0x99;
+
+    // Bitmap
+    private static final int PROCESSING_CODE = 1;
+    private static final int CARD = 1 << 1;
+    private static final int PIN = 1 << 2;
+    private static final int NEW_PIN = 1 << 3;
+    private static final int CONFIRM_PIN = 1 << 4;
+    private static final int AMOUNT = 1 << 5;
+    private static final int TO_CARD = 1 << 6;
+    private static final int RESPONSE_CODE = 1 << 7;
+    private static final int BALANCE = 1 << 8;
+    private static final int MESSAGE = 1 << 9;
+    private static final int HISTORY = 1 << 10;
+    private static final int TERMINAL = 1 << 11;
+    private static final int SESSION = 1 << 12;
+    private static final int REQUEST_KEY = 1 << 13;
+
+    private static final AtmResult.Status[] STATUSES = AtmResult.Status.values();
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private int mti;
+    private int stan;
+    private int fields;
+    private int processingCode;
+    private String cardNumber;
+    private String pin;
+    private String newPin;
+    private String confirmPin;
+    private long amount;
+    private String toCardNumber;
+    private int responseCode;
+    private long balance;
+    private String message;
+    private String terminalId;
+    private String sessionToken;
+    private long requestKey;
+    private List<Transaction> history = Collections.emptyList();
+
+    private AtmMessage(int mti, int processingCode) {
+        this.mti = mti;
+        this.processingCode = processingCode;
+        this.fields = PROCESSING_CODE;
+    }
+
+    private AtmMessage() {
+    }
+
+    public static AtmMessage login(String cardNumber, String pin) {
+        AtmMessage m = new AtmMessage(AUTHORIZATION_REQUEST, LOGIN);
+        m.cardNumber = cardNumber;
+        m.pin = pin;
+        m.fields |= CARD | PIN;
+        return m;
+    }
+
+    public static AtmMessage balance(String session) {
+        return inSession(AUTHORIZATION_REQUEST, BALANCE_INQUIRY, session);
+    }
+
+    public static AtmMessage history(String session) {
+        return inSession(AUTHORIZATION_REQUEST, MINI_STATEMENT, session);
+    }
+
+    public static AtmMessage logout(String session) {
+        return inSession(AUTHORIZATION_REQUEST, LOGOUT, session);
+    }
+
+    public static AtmMessage withdraw(String session, long amount, long requestKey) {
+        return financial(WITHDRAWAL, session, amount, requestKey);
+    }
+
+    public static AtmMessage deposit(String session, long amount, long requestKey) {
+        return financial(DEPOSIT, session, amount, requestKey);
+    }
+
+    public static AtmMessage transfer(String session, String toCardNumber, long amount, long requestKey) {
+        AtmMessage m = financial(TRANSFER, session, amount, requestKey);
+        m.toCardNumber = toCardNumber;
+        m.fields |= TO_CARD;
+        return m;
+    }
+
+    public static AtmMessage changePin(String session, String currentPin, String newPin, String confirmPin,
+                                       long requestKey) {
+        AtmMessage m = inSession(AUTHORIZATION_REQUEST, PIN_CHANGE, session);
+        m.pin = currentPin;
+        m.newPin = newPin;
+        m.confirmPin = confirmPin;
+        m.fields |= PIN | NEW_PIN | CONFIRM_PIN;
+        m.setRequestKey(requestKey);
+        return m;
+    }
+
+    private static AtmMessage financial(int processingCode, String session, long amount, long requestKey) {
+        AtmMessage m = inSession(FINANCIAL_REQUEST, processingCode, session);
+        m.amount = amount;
+        m.fields |= AMOUNT;
+        m.setRequestKey(requestKey);
+        return m;
+    }
+
+    private static AtmMessage inSession(int mti, int processingCode, String session) {
+        AtmMessage m = new AtmMessage(mti, processingCode);
+        m.sessionToken = session;
+        m.fields |= SESSION;
+        return m;
+    }
+
+    // Response to this request carrying result
+    public AtmMessage response(AtmResult result) {
+        AtmMessage m = new AtmMessage();
+        m.mti = mti | RESPONSE;
+        m.stan = stan;
+        m.processingCode = processingCode;
+        m.responseCode = result.getStatus().ordinal();
+        m.fields = PROCESSING_CODE | RESPONSE_CODE;
+        if (result.isSuccess()) {
+            m.balance = result.getBalance();
+            m.fields |= BALANCE;
+        }
+        if (result.getMessage() != null) {
+            m.message = result.getMessage();
+            m.fields |= MESSAGE;
+        }
+        if (result.getSessionToken() != null) {
+            m.sessionToken = result.getSessionToken();
+            m.fields |= SESSION;
+        }
+        return m;
+    }
+
+    // Mini statement response; rows is null if the session is gone
+    public AtmMessage historyResponse(List<Transaction> rows) {
+        AtmMessage m = new AtmMessage();
+        m.mti = mti | RESPONSE;
+        m.stan = stan;
+        m.processingCode = processingCode;
+        m.fields = PROCESSING_CODE | RESPONSE_CODE;
+        if (rows == null) {
+            m.responseCode = AtmResult.Status.SESSION_EXPIRED.ordinal();
+        } else {
+            m.responseCode = AtmResult.Status.OK.ordinal();
+            m.history = rows;
+            m.fields |= HISTORY;
+        }
+        return m;
+    }
+
+    public boolean isRequest() { return (mti & RESPONSE) == 0; }
+    public int getMti() { return mti; }
+    public int getStan() { return stan; }
+    public void setStan(int stan) { this.stan = stan; }
+    public int getProcessingCode() { return processingCode; }
+    public String getCardNumber() { return cardNumber; }
+    public String getPin() { return pin; }
+    public String getNewPin() { return newPin; }
+    public String getConfirmPin() { return confirmPin; }
+    public long getAmount() { return amount; }
+    public String getToCardNumber() { return toCardNumber; }
+    // Id of the requesting terminal, or null if it did not send one
+    public String getTerminalId() { return terminalId; }
+
+    public String getSessionToken() { return sessionToken; }
+    // The terminal's idempotency key for the transaction, or 0 if it sent none
+    public long getRequestKey() { return requestKey; }
+
+    public void setTerminalId(String terminalId) {
+        this.terminalId = terminalId;
+        fields = terminalId == null ? fields & ~TERMINAL : fields | TERMINAL;
+    }
+
+    private void setRequestKey(long requestKey) {
+        this.requestKey = requestKey;
+        fields = requestKey == 0 ? fields & ~REQUEST_KEY : fields | REQUEST_KEY;
+    }
+
+    public AtmResult toResult() {
+        AtmResult.Status status = STATUSES[responseCode];
+        AtmResult result = status == AtmResult.Status.OK ? AtmResult.ok(balance) : AtmResult.failure(status, message);
+        return sessionToken != null ? result.withSession(sessionToken) : result;
+    }
+
+    // Rows of a mini statement response as an in-memory history, or null if the session is gone
+    public TransactionHistory toHistory() {
+        if (responseCode != AtmResult.Status.OK.ordinal()) {
+            return null;
+        }
+        TransactionHistory h = new TransactionHistory(null);
+        for (Transaction t : history) {
+            h.append(t.getTimestamp(), t.getTransactionType(), t.getCounterparty(), t.getAmount(), t.getBalance());
+        }
+        return h;
+    }
+
+    // Writes the whole frame, length prefix included
+    public void encode(ByteBuffer out) {
+        int start = out.position();
+        out.putInt(0);
+        out.putShort((short) mti);
+        out.putInt(stan);
+        out.putShort((short) fields);
+        if ((fields & PROCESSING_CODE) != 0) out.put((byte) processingCode);
+        if ((fields & CARD) != 0) putString(out, cardNumber);
+        if ((fields & PIN) != 0) putString(out, pin);
+        if ((fields & NEW_PIN) != 0) putString(out, newPin);
+        if ((fields & CONFIRM_PIN) != 0) putString(out, confirmPin);
+        if ((fields & AMOUNT) != 0) out.putLong(amount);
+        if ((fields & TO_CARD) != 0) putString(out, toCardNumber);
+        if ((fields & RESPONSE_CODE) != 0) out.put((byte) responseCode);
+        if ((fields & BALANCE) != 0) out.putLong(balance);
+        if ((fields & MESSAGE) != 0) putString(out, message);
+        if ((fields & HISTORY) != 0) {
+            out.putShort((short) history.size());
+            for (Transaction t : history) {
+                out.putLong(t.getTimestamp());
+                out.put(t.getTransactionType().code());
+                out.putLong(t.getCounterparty());
+                out.putLong(t.getAmount());
+                out.putLong(t.getBalance());
+            }
+        }
+        if ((fields & TERMINAL) != 0) putString(out, terminalId);
+        if ((fields & SESSION) != 0) putString(out, sessionToken);
+        if ((fields & REQUEST_KEY) != 0) out.putLong(requestKey);
+        out.putInt(start, out.position() - start - Integer.BYTES);
+    }
+
+    // Decodes one frame body, i.e. everything after the length prefix
+    public static AtmMessage decode(ByteBuffer frame) throws IOException {
+        try {
+            AtmMessage m = new AtmMessage();
+            m.mti = frame.getShort() & 0xFFFF;
+            m.stan = frame.getInt();
+            m.fields = frame.getShort() & 0xFFFF;
+            int f = m.fields;
+            if ((f & PROCESSING_CODE) != 0) m.processingCode = frame.get() & 0xFF;
+            if ((f & CARD) != 0) m.cardNumber = getString(frame);
+            if ((f & PIN) != 0) m.pin = getString(frame);
+            if ((f & NEW_PIN) != 0) m.newPin = getString(frame);
+            if ((f & CONFIRM_PIN) != 0) m.confirmPin = getString(frame);
+            if ((f & AMOUNT) != 0) m.amount = frame.getLong();
+            if ((f & TO_CARD) != 0) m.toCardNumber = getString(frame);
+            if ((f & RESPONSE_CODE) != 0) {
+                m.responseCode = frame.get() & 0xFF;
+                if (m.responseCode >= STATUSES.length) {
+                    throw new ProtocolException("Unknown response code " + m.responseCode);
+                }
+            }
+            if ((f & BALANCE) != 0) m.balance = frame.getLong();
+            if ((f & MESSAGE) != 0) m.message = getString(frame);
+            if ((f & HISTORY) != 0) {
+                int count = frame.getShort() & 0xFFFF;
+                List<Transaction> rows = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long timestamp = frame.getLong();
+                    int type = frame.get() & 0xFF;
+                    if (type >= TYPES.length) {
+                        throw new ProtocolException("Unknown transaction type " + type);
+                    }
+                    rows.add(new Transaction(timestamp, TransactionType.fromCode(type), frame.getLong(),
+                            frame.getLong(), frame.getLong()));
+                }
+                m.history = rows;
+            }
+            if ((f & TERMINAL) != 0) m.terminalId = getString(frame);
+            if ((f & SESSION) != 0) m.sessionToken = getString(frame);
+            if ((f & REQUEST_KEY) != 0) m.requestKey = frame.getLong();
+            if (frame.hasRemaining()) {
+                throw new ProtocolException("Trailing bytes after message");
+            }
+            return m;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated message");
+        }
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("Value too long for message: " + s);
+        }
+        buf.put((byte) bytes.length);
+        buf.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.get() & 0xFF];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
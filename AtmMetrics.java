@@ -0,0 +1,201 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Request counters and latency histograms for the host. Every request is counted by
+// operation and outcome and by terminal, and its latency from arrival to result goes
+// into a histogram per operation. The counters are LongAdders, which stripe their
+// cells across contending threads, and the histograms are fixed arrays, so recording
+// never allocates once a terminal has been seen. Read through JMX (registerMBean) or
+// as plain text (MetricsEndpoint).
+public class AtmMetrics implements AtmMetricsMXBean, MetricsEndpoint.Source {
+    public enum Op { LOGIN, BALANCE, WITHDRAW, DEPOSIT, TRANSFER, PIN_CHANGE, HISTORY, LOGOUT }
+
+    // Outcome of requests that never produced a result because the worker queue was full
+    public static final String ERROR = "ERROR";
+
+    // Beyond this many distinct terminal ids, new ones are counted together under OTHER_TERMINALS
+    public static final int MAX_TERMINALS = 4096;
+    public static final String OTHER_TERMINALS = "other";
+
+    private static final Op[] OPS = Op.values();
+    private static final AtmResult.Status[] STATUSES = AtmResult.Status.values();
+    private static final int OUTCOMES = STATUSES.length + 1; // the last one is ERROR
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final class TerminalCounters {
+        final LongAdder requests = new LongAdder();
+        final LongAdder failures = new LongAdder();
+    }
+
+    private final LongAdder[] outcomes = new LongAdder[OPS.length * OUTCOMES];
+    private final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+    private final Map<String, TerminalCounters> terminals = new ConcurrentHashMap<>();
+    private final TerminalCounters otherTerminals = new TerminalCounters();
+
+    public AtmMetrics() {
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+        }
+    }
+
+    // terminalId may be null when the request could not be tied to a terminal, e.g. an expired session
+    public void record(Op op, String terminalId, AtmResult.Status status, long nanos) {
+        outcomes[op.ordinal() * OUTCOMES + status.ordinal()].increment();
+        latency[op.ordinal()].record(nanos);
+        countTerminal(terminalId, status != AtmResult.Status.OK);
+    }
+
+    // Counts a request that was turned away before it ran, so has no meaningful latency
+    public void count(Op op, String terminalId, AtmResult.Status status) {
+        outcomes[op.ordinal() * OUTCOMES + status.ordinal()].increment();
+        countTerminal(terminalId, status != AtmResult.Status.OK);
+    }
+
+    public void recordError(Op op, String terminalId) {
+        outcomes[op.ordinal() * OUTCOMES + OUTCOMES - 1].increment();
+        countTerminal(terminalId, true);
+    }
+
+    public LatencyHistogram getLatency(Op op) {
+        return latency[op.ordinal()];
+    }
+
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Op op : OPS) {
+            for (int outcome = 0; outcome < OUTCOMES; outcome++) {
+                long count = outcomes[op.ordinal() * OUTCOMES + outcome].sum();
+                if (count > 0) {
+                    counts.put(name(op) + " " + outcomeName(outcome), count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMillis() {
+        Map<String, Double> percentiles = new TreeMap<>();
+        for (Op op : OPS) {
+            LatencyHistogram h = latency[op.ordinal()];
+            if (h.count() == 0) {
+                continue;
+            }
+            for (double p : PERCENTILES) {
+                percentiles.put(name(op) + " p" + percentileName(p), h.percentile(p) / 1e6);
+            }
+        }
+        return percentiles;
+    }
+
+    @Override
+    public Map<String, Long> getTerminalRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        forEachTerminal((id, c) -> counts.put(id, c.requests.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getTerminalFailureCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        forEachTerminal((id, c) -> counts.put(id, c.failures.sum()));
+        return counts;
+    }
+
+    // Prometheus text exposition format
+    @Override
+    public void writeText(StringBuilder out) {
+        out.append("# TYPE atm_requests_total counter\n");
+        for (Op op : OPS) {
+            for (int outcome = 0; outcome < OUTCOMES; outcome++) {
+                long count = outcomes[op.ordinal() * OUTCOMES + outcome].sum();
+                if (count > 0) {
+                    out.append("atm_requests_total{op=\"").append(name(op)).append("\",outcome=\"")
+                            .append(outcomeName(outcome)).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+        out.append("# TYPE atm_request_latency_seconds summary\n");
+        for (Op op : OPS) {
+            LatencyHistogram h = latency[op.ordinal()];
+            long count = h.count();
+            if (count == 0) {
+                continue;
+            }
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                out.append("atm_request_latency_seconds{op=\"").append(name(op)).append("\",quantile=\"")
+                        .append(QUANTILES[i]).append("\"} ").append(h.percentile(PERCENTILES[i]) / 1e9).append('\n');
+            }
+            out.append("atm_request_latency_seconds_count{op=\"").append(name(op)).append("\"} ")
+                    .append(count).append('\n');
+        }
+        out.append("# TYPE atm_terminal_requests_total counter\n");
+        forEachTerminal((id, c) -> terminalLine(out, "atm_terminal_requests_total", id, c.requests.sum()));
+        out.append("# TYPE atm_terminal_failures_total counter\n");
+        forEachTerminal((id, c) -> terminalLine(out, "atm_terminal_failures_total", id, c.failures.sum()));
+    }
+
+    private void countTerminal(String terminalId, boolean failed) {
+        if (terminalId == null) {
+            return;
+        }
+        TerminalCounters counters = terminals.get(terminalId);
+        if (counters == null) {
+            counters = terminals.size() < MAX_TERMINALS
+                    ? terminals.computeIfAbsent(terminalId, id -> new TerminalCounters()) : otherTerminals;
+        }
+        counters.requests.increment();
+        if (failed) {
+            counters.failures.increment();
+        }
+    }
+
+    private void forEachTerminal(BiConsumer<String, TerminalCounters> action) {
+        new TreeMap<>(terminals).forEach(action);
+        if (otherTerminals.requests.sum() > 0) {
+            action.accept(OTHER_TERMINALS, otherTerminals);
+        }
+    }
+
+    private static void terminalLine(StringBuilder out, String metric, String terminalId, long value) {
+        out.append(metric).append("{terminal=\"");
+        for (int i = 0; i < terminalId.length(); i++) {
+            char c = terminalId.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append("\"} ").append(value).append('\n');
+    }
+
+    private static String name(Op op) {
+        return op.name().toLowerCase();
+    }
+
+    private static String outcomeName(int outcome) {
+        return outcome == OUTCOMES - 1 ? ERROR : STATUSES[outcome].name();
+    }
+
+    private static String percentileName(double p) {
+        return p == Math.rint(p) ? Long.toString((long) p) : Double.toString(p);
+    }
+}
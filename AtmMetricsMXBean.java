@@ -0,0 +1,13 @@
+import java.util.Map;
+
+// JMX view of AtmMetrics. Keys are "<op> <outcome>" and "<op> p<percentile>"; the
+// terminal maps are keyed by terminal id.
+public interface AtmMetricsMXBean {
+    Map<String, Long> getRequestCounts();
+
+    Map<String, Double> getLatencyMillis();
+
+    Map<String, Long> getTerminalRequestCounts();
+
+    Map<String, Long> getTerminalFailureCounts();
+}
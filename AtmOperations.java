@@ -0,0 +1,29 @@
+import java.util.concurrent.CompletableFuture;
+
+// The operations a terminal can request, whether the accounts live in this process
+// (AtmService) or on a remote host (AtmClient). Every call is asynchronous. A
+// successful login opens a session and returns its token; every other operation
+// names the session instead of a card and fails with SESSION_EXPIRED once it is gone.
+//
+// Withdrawals, deposits, transfers and PIN changes take an idempotency key from
+// IdempotencyCache.newKey(), one per transaction. Sending a request again with the
+// same key, as after a timeout, returns the original result instead of repeating it.
+public interface AtmOperations {
+    CompletableFuture<AtmResult> login(String cardNumber, String pin);
+
+    CompletableFuture<AtmResult> balance(String session);
+
+    CompletableFuture<AtmResult> withdraw(String session, long amount, long requestKey);
+
+    CompletableFuture<AtmResult> deposit(String session, long amount, long requestKey);
+
+    CompletableFuture<AtmResult> transfer(String session, String toCardNumber, long amount, long requestKey);
+
+    CompletableFuture<AtmResult> changePin(String session, String currentPin, String newPin, String confirmPin,
+                                           long requestKey);
+
+    // The session card's history, or null if the session is gone; a remote host sends only the newest rows
+    CompletableFuture<TransactionHistory> history(String session);
+
+    CompletableFuture<Void> logout(String session);
+}
@@ -0,0 +1,64 @@
+// Outcome of a single engine operation, independent of how it is displayed
+public final class AtmResult {
+    public enum Status {
+        OK,
+        INVALID_AMOUNT,
+        INSUFFICIENT_FUNDS,
+        CARD_NOT_RECOGNIZED,
+        INVALID_PIN,
+        RECIPIENT_NOT_FOUND,
+        SAME_ACCOUNT,
+        INVALID_NEW_PIN,
+        PIN_MISMATCH,
+        UNAVAILABLE,
+        BUSY,
+        CARD_LOCKED,
+        RATE_LIMITED,
+        SESSION_EXPIRED,
+        CANNOT_DISPENSE,
+        LIMIT_EXCEEDED,
+        DECLINED,
+        KEY_REUSED
+    }
+
+    private final Status status;
+    private final String message;
+    private final long balance;
+    private final String sessionToken;
+    private final boolean replay;
+
+    private AtmResult(Status status, String message, long balance, String sessionToken, boolean replay) {
+        this.status = status;
+        this.message = message;
+        this.balance = balance;
+        this.sessionToken = sessionToken;
+        this.replay = replay;
+    }
+
+    public static AtmResult ok(long balance) {
+        return new AtmResult(Status.OK, null, balance, null, false);
+    }
+
+    // The original result of a request that was sent again after it had been committed
+    public static AtmResult replayed(long balance) {
+        return new AtmResult(Status.OK, null, balance, null, true);
+    }
+
+    // This result with the token of the session a login opened
+    public AtmResult withSession(String sessionToken) {
+        return new AtmResult(status, message, balance, sessionToken, replay);
+    }
+
+    public static AtmResult failure(Status status, String message) {
+        return new AtmResult(status, message, 0, null, false);
+    }
+
+    public Status getStatus() { return status; }
+    public String getMessage() { return message; }
+    // Balance after the operation, in paise
+    public long getBalance() { return balance; }
+    public String getSessionToken() { return sessionToken; }
+    public boolean isSuccess() { return status == Status.OK; }
+    // True if nothing was done because the request had already been committed
+    public boolean isReplay() { return replay; }
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+// Host that serves AtmMessage requests from many terminals. One selector thread
+// accepts connections and does all socket I/O without blocking. Every request
+// decoded in one pass over the ready sockets, from any terminal, is handed to the
+// AtmService worker pool in batches of up to maxBatch, and each batch is applied
+// under a single journal commit wait. Responses are queued on their connection and
+// written once the socket is ready. A connection that sends a malformed or
+// oversized frame is dropped.
+public class AtmServer implements AutoCloseable {
+    private static final int INITIAL_READ_BYTES = 4096;
+    private static final int ENCODE_BYTES = AtmMessage.MAX_FRAME_BYTES + Integer.BYTES;
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(ENCODE_BYTES));
+
+    private static final int DEFAULT_MAX_BATCH = 64;
+
+    private final AtmService service;
+    private final int maxBatch;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private final Thread ioThread;
+    private volatile boolean running = true;
+
+    // Requests read in the current selector pass; touched by the selector thread only
+    private final List<Connection> batchConnections = new ArrayList<>();
+    private final List<AtmMessage> batchRequests = new ArrayList<>();
+    private final List<Function<AtmEngine, AtmMessage>> batchCalls = new ArrayList<>();
+
+    public AtmServer(InetSocketAddress address, AtmService service) throws IOException {
+        this(address, service, DEFAULT_MAX_BATCH);
+    }
+
+    public AtmServer(InetSocketAddress address, AtmService service, int maxBatch) throws IOException {
+        this.service = service;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.ioThread = new Thread(this::run, "atm-server-io");
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    public void start() {
+        ioThread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("Selector failed: " + e.getMessage());
+                return;
+            }
+            Connection ready;
+            while ((ready = writable.poll()) != null) {
+                ready.enableWrite();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        connection.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.write();
+                    }
+                } catch (IOException e) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+            flushBatch();
+        }
+    }
+
+    private void enqueue(Connection connection, AtmMessage request) {
+        long start = System.nanoTime();
+        int code = request.getProcessingCode();
+        if (code == AtmMessage.LOGIN || code == AtmMessage.PIN_CHANGE) {
+            // PIN checks go to the service's bounded verifier pool, never into a batch. The
+            // terminal id is the client's to choose, so attempts are also charged to its address.
+            String terminal = request.getTerminalId() != null ? request.getTerminalId() : connection.address;
+            CompletableFuture<AtmResult> result = code == AtmMessage.LOGIN
+                    ? service.login(terminal, connection.address, request.getCardNumber(), request.getPin())
+                    : service.changePin(request.getSessionToken(), request.getPin(), request.getNewPin(),
+                            request.getConfirmPin(), request.getRequestKey());
+            result.whenComplete((r, error) -> {
+                if (error != null) {
+                    service.getMetrics().recordError(op(code), terminal);
+                }
+                connection.send(request.response(error == null ? r : hostError()));
+            });
+            return;
+        }
+        if (code == AtmMessage.LOGOUT) {
+            service.logout(request.getSessionToken());
+            connection.send(request.response(AtmResult.ok(0)));
+            return;
+        }
+        SessionRegistry.Session session = service.getSessions().use(request.getSessionToken());
+        if (session == null) {
+            service.getMetrics().record(op(code), null, AtmResult.Status.SESSION_EXPIRED, System.nanoTime() - start);
+            connection.send(request.response(AtmService.sessionExpired()));
+            return;
+        }
+        batchConnections.add(connection);
+        batchRequests.add(request);
+        batchCalls.add(call(request, session, start));
+        if (batchCalls.size() == maxBatch) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        if (batchCalls.isEmpty()) {
+            return;
+        }
+        List<Connection> connections = new ArrayList<>(batchConnections);
+        List<AtmMessage> requests = new ArrayList<>(batchRequests);
+        service.batch(new ArrayList<>(batchCalls)).whenComplete((responses, error) -> {
+            for (int i = 0; i < connections.size(); i++) {
+                if (error != null) {
+                    service.getMetrics().recordError(op(requests.get(i).getProcessingCode()), null);
+                }
+                connections.get(i).send(error == null ? responses.get(i) : requests.get(i).response(hostError()));
+            }
+        });
+        batchConnections.clear();
+        batchRequests.clear();
+        batchCalls.clear();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private static AtmResult hostError() {
+        return AtmResult.failure(AtmResult.Status.UNAVAILABLE, "The bank could not complete the request. Please try again.");
+    }
+
+    private Function<AtmEngine, AtmMessage> call(AtmMessage request, SessionRegistry.Session session, long start) {
+        String card = session.getCardNumber();
+        String terminal = session.getTerminalId();
+        switch (request.getProcessingCode()) {
+            case AtmMessage.BALANCE_INQUIRY:
+                return engine -> respond(request, terminal, start, engine.balance(card));
+            case AtmMessage.WITHDRAWAL:
+                return engine -> respond(request, terminal, start,
+                        service.withdrawCash(session, request.getAmount(), request.getRequestKey()));
+            case AtmMessage.DEPOSIT:
+                return engine -> respond(request, terminal, start,
+                        engine.deposit(card, request.getAmount(), request.getRequestKey()));
+            case AtmMessage.TRANSFER:
+                return engine -> respond(request, terminal, start,
+                        engine.transfer(card, request.getToCardNumber(), request.getAmount(),
+                                request.getRequestKey()));
+            case AtmMessage.MINI_STATEMENT:
+                return engine -> {
+                    TransactionHistory history = engine.history(card);
+                    service.getMetrics().record(AtmMetrics.Op.HISTORY, terminal,
+                            history == null ? AtmResult.Status.SESSION_EXPIRED : AtmResult.Status.OK,
+                            System.nanoTime() - start);
+                    return request.historyResponse(history == null ? null
+                            : history.last(AtmMessage.MAX_HISTORY_ROWS));
+                };
+            default:
+                return engine -> request.response(AtmResult.failure(AtmResult.Status.UNAVAILABLE,
+                        "This operation is not supported by the host."));
+        }
+    }
+
+    // Records the result under the request's operation, timed from when it was decoded
+    private AtmMessage respond(AtmMessage request, String terminal, long start, AtmResult result) {
+        service.getMetrics().record(op(request.getProcessingCode()), terminal, result.getStatus(),
+                System.nanoTime() - start);
+        return request.response(result);
+    }
+
+    private static AtmMetrics.Op op(int processingCode) {
+        switch (processingCode) {
+            case AtmMessage.LOGIN:
+                return AtmMetrics.Op.LOGIN;
+            case AtmMessage.WITHDRAWAL:
+                return AtmMetrics.Op.WITHDRAW;
+            case AtmMessage.DEPOSIT:
+                return AtmMetrics.Op.DEPOSIT;
+            case AtmMessage.TRANSFER:
+                return AtmMetrics.Op.TRANSFER;
+            case AtmMessage.PIN_CHANGE:
+                return AtmMetrics.Op.PIN_CHANGE;
+            case AtmMessage.MINI_STATEMENT:
+                return AtmMetrics.Op.HISTORY;
+            case AtmMessage.LOGOUT:
+                return AtmMetrics.Op.LOGOUT;
+            default:
+                return AtmMetrics.Op.BALANCE;
+        }
+    }
+
+    private class Connection {
+        private final SocketChannel channel;
+        private final String address; // for rate limiting, and the terminal id of terminals that send none
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_READ_BYTES);
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= Integer.BYTES) {
+                int length = in.getInt(in.position());
+                if (length <= 0 || length > AtmMessage.MAX_FRAME_BYTES) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < Integer.BYTES + length) {
+                    if (in.capacity() < Integer.BYTES + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + length);
+                        larger.put(in);
+                        in = larger;
+                        return;
+                    }
+                    break;
+                }
+                in.position(in.position() + Integer.BYTES);
+                ByteBuffer frame = in.slice();
+                frame.limit(length);
+                in.position(in.position() + length);
+                AtmMessage request = AtmMessage.decode(frame);
+                if (!request.isRequest()) {
+                    throw new IOException("Terminal sent a response");
+                }
+                enqueue(this, request);
+            }
+            in.compact();
+        }
+
+        // Called from worker threads; the selector thread picks the response up
+        void send(AtmMessage response) {
+            ByteBuffer buf = ENCODE_BUFFER.get();
+            buf.clear();
+            response.encode(buf);
+            buf.flip();
+            ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+            copy.put(buf).flip();
+            responses.add(copy);
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        void enableWrite() {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void write() throws IOException {
+            ByteBuffer buf;
+            while ((buf = responses.peek()) != null) {
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    return; // socket is full, wait for the next OP_WRITE
+                }
+                responses.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
+}
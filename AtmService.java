@@ -0,0 +1,255 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Asynchronous boundary between a client such as the Swing UI or AtmServer and the engine.
+// Every call runs on a small bounded worker pool and completes its future with the
+// engine's result, or exceptionally with a TimeoutException if the backend is too
+// slow, or a RejectedExecutionException if too many requests are already queued.
+//
+// Login and PIN change are CPU-bound (PIN hashing) and run on a separate pool sized
+// to the CPUs with a short queue. A login storm therefore fills that queue and gets
+// BUSY results instead of starving withdrawals and deposits of worker threads.
+//
+// The service also owns the session registry: login opens a session, and every
+// other operation looks its session up to find the card it acts on. It records every
+// request in AtmMetrics with its latency from submission to result.
+//
+// Terminals whose cassettes have been loaded with loadCassettes only withdraw amounts
+// their notes can make; the notes are taken before the account is debited and put
+// back if the debit fails or turns out to repeat one already made. Other terminals are
+// trusted to check for themselves.
+public class AtmService implements AtmOperations, AutoCloseable {
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_QUEUE = 256;
+    private static final long DEFAULT_TIMEOUT_SECONDS = 10;
+    private static final int VERIFY_QUEUE = 64;
+
+    private final AtmEngine engine;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor verifier;
+    private final LatencyHistogram pinVerification = new LatencyHistogram();
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final AtmMetrics metrics = new AtmMetrics();
+    private final Map<String, CashCassettes> cassettes = new ConcurrentHashMap<>();
+    private final long timeout;
+    private final TimeUnit timeoutUnit;
+
+    public AtmService(AtmEngine engine) {
+        this(engine, DEFAULT_THREADS, DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public AtmService(AtmEngine engine, int threads, long timeout, TimeUnit timeoutUnit) {
+        this.engine = engine;
+        this.timeout = timeout;
+        this.timeoutUnit = timeoutUnit;
+        this.executor = newPool("atm-service-", threads, DEFAULT_QUEUE);
+        this.verifier = newPool("atm-pin-verifier-", Runtime.getRuntime().availableProcessors(), VERIFY_QUEUE);
+    }
+
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    public void loadCassettes(String terminalId, CashCassettes loaded) {
+        cassettes.put(terminalId, loaded);
+    }
+
+    // The terminal's cassettes, or null if the host does not track them
+    public CashCassettes getCassettes(String terminalId) {
+        return cassettes.get(terminalId);
+    }
+
+    public AtmMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Time spent verifying PINs, queueing excluded
+    public LatencyHistogram getPinVerificationLatency() {
+        return pinVerification;
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> login(String cardNumber, String pin) {
+        return login(AtmEngine.LOCAL_TERMINAL, cardNumber, pin);
+    }
+
+    public CompletableFuture<AtmResult> login(String terminalId, String cardNumber, String pin) {
+        return login(terminalId, null, cardNumber, pin);
+    }
+
+    // For terminals on the network; address is where they connected from, see AtmEngine.login
+    public CompletableFuture<AtmResult> login(String terminalId, String address, String cardNumber, String pin) {
+        long start = System.nanoTime();
+        return verify(AtmMetrics.Op.LOGIN, terminalId, () -> {
+            AtmResult result = engine.login(terminalId, address, cardNumber, pin);
+            if (result.isSuccess()) {
+                result = result.withSession(sessions.open(cardNumber, terminalId, address).getToken());
+            }
+            metrics.record(AtmMetrics.Op.LOGIN, terminalId, result.getStatus(), System.nanoTime() - start);
+            return result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> balance(String session) {
+        return submit(AtmMetrics.Op.BALANCE, session, s -> engine.balance(s.getCardNumber()));
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> withdraw(String session, long amount, long requestKey) {
+        return submit(AtmMetrics.Op.WITHDRAW, session, s -> withdrawCash(s, amount, requestKey));
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> deposit(String session, long amount, long requestKey) {
+        return submit(AtmMetrics.Op.DEPOSIT, session, s -> engine.deposit(s.getCardNumber(), amount, requestKey));
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> transfer(String session, String toCardNumber, long amount, long requestKey) {
+        return submit(AtmMetrics.Op.TRANSFER, session,
+                s -> engine.transfer(s.getCardNumber(), toCardNumber, amount, requestKey));
+    }
+
+    @Override
+    public CompletableFuture<AtmResult> changePin(String session, String currentPin, String newPin, String confirmPin,
+                                                  long requestKey) {
+        long start = System.nanoTime();
+        return verify(AtmMetrics.Op.PIN_CHANGE, null, () -> {
+            SessionRegistry.Session s = sessions.use(session);
+            AtmResult result = s == null ? sessionExpired()
+                    : engine.changePin(s.getTerminalId(), s.getAddress(), s.getCardNumber(), currentPin, newPin,
+                            confirmPin, requestKey);
+            record(AtmMetrics.Op.PIN_CHANGE, s, result, start);
+            return result;
+        });
+    }
+
+    @Override
+    public CompletableFuture<TransactionHistory> history(String session) {
+        long start = System.nanoTime();
+        return submit(AtmMetrics.Op.HISTORY, () -> {
+            SessionRegistry.Session s = sessions.use(session);
+            TransactionHistory history = s == null ? null : engine.history(s.getCardNumber());
+            metrics.record(AtmMetrics.Op.HISTORY, s == null ? null : s.getTerminalId(),
+                    history == null ? AtmResult.Status.SESSION_EXPIRED : AtmResult.Status.OK, System.nanoTime() - start);
+            return history;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> logout(String session) {
+        long start = System.nanoTime();
+        SessionRegistry.Session s = sessions.close(session);
+        metrics.record(AtmMetrics.Op.LOGOUT, s == null ? null : s.getTerminalId(), AtmResult.Status.OK,
+                System.nanoTime() - start);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // Debits the session's account and takes the notes from its terminal's cassettes
+    AtmResult withdrawCash(SessionRegistry.Session session, long amount, long requestKey) {
+        CashCassettes loaded = cassettes.get(session.getTerminalId());
+        if (loaded == null) {
+            return engine.withdraw(session.getCardNumber(), amount, requestKey);
+        }
+        int[] notes = loaded.reserve(amount);
+        if (notes == null) {
+            // A retry of a withdrawal that was already made needs no notes now
+            AtmResult replayed = engine.replayWithdrawal(session.getCardNumber(), amount, requestKey);
+            if (replayed != null) {
+                return replayed;
+            }
+            return AtmResult.failure(AtmResult.Status.CANNOT_DISPENSE,
+                    "This ATM cannot dispense that amount with the notes it holds. Please try another amount.");
+        }
+        AtmResult result = engine.withdraw(session.getCardNumber(), amount, requestKey);
+        if (!result.isSuccess() || result.isReplay()) {
+            loaded.release(notes); // a replay's notes were counted out the first time
+        }
+        return result;
+    }
+
+    public static AtmResult sessionExpired() {
+        return AtmResult.failure(AtmResult.Status.SESSION_EXPIRED, "Your session has expired. Please log in again.");
+    }
+
+    // Runs calls on one worker with a single journal commit wait, see AtmEngine.applyBatch
+    public <T> CompletableFuture<List<T>> batch(List<? extends Function<AtmEngine, ? extends T>> calls) {
+        return submit(null, () -> engine.applyBatch(calls));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        verifier.shutdown();
+        sessions.close();
+    }
+
+    // Runs call on a worker against the live session, recording the outcome under op
+    private CompletableFuture<AtmResult> submit(AtmMetrics.Op op, String session,
+            Function<SessionRegistry.Session, AtmResult> call) {
+        long start = System.nanoTime();
+        return submit(op, () -> {
+            SessionRegistry.Session s = sessions.use(session);
+            AtmResult result = s == null ? sessionExpired() : call.apply(s);
+            record(op, s, result, start);
+            return result;
+        });
+    }
+
+    private void record(AtmMetrics.Op op, SessionRegistry.Session session, AtmResult result, long start) {
+        metrics.record(op, session == null ? null : session.getTerminalId(), result.getStatus(),
+                System.nanoTime() - start);
+    }
+
+    private CompletableFuture<AtmResult> verify(AtmMetrics.Op op, String terminalId, Supplier<AtmResult> call) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                try {
+                    return call.get();
+                } finally {
+                    pinVerification.record(System.nanoTime() - start);
+                }
+            }, verifier).orTimeout(timeout, timeoutUnit);
+        } catch (RejectedExecutionException e) {
+            metrics.count(op, terminalId, AtmResult.Status.BUSY);
+            return CompletableFuture.completedFuture(AtmResult.failure(AtmResult.Status.BUSY,
+                    "The ATM is busy. Please try again in a moment."));
+        }
+    }
+
+    // op is null for batches; AtmServer records their requests itself
+    private <T> CompletableFuture<T> submit(AtmMetrics.Op op, Supplier<T> call) {
+        // supplyAsync reports a rejected submission by throwing, not through the future
+        try {
+            return CompletableFuture.supplyAsync(call, executor).orTimeout(timeout, timeoutUnit);
+        } catch (RejectedExecutionException e) {
+            if (op != null) {
+                metrics.recordError(op, null);
+            }
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static ThreadPoolExecutor newPool(String name, int threads, int queue) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queue), r -> {
+                    Thread thread = new Thread(r, name + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+}
@@ -0,0 +1,48 @@
+// Packs numeric card numbers of up to 17 digits into a long: the digit count in the
+// top five bits and the numeric value below, so leading zeros survive the round trip.
+// A packed card number is never zero, which leaves zero free to mean "no card".
+public final class CardNumbers {
+    public static final int MAX_DIGITS = 17;
+
+    private static final int VALUE_BITS = 59;
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1;
+
+    private CardNumbers() {
+    }
+
+    public static boolean isValid(String cardNumber) {
+        int length = cardNumber.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = cardNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long pack(String cardNumber) {
+        if (!isValid(cardNumber)) {
+            throw new IllegalArgumentException("Card numbers must be 1 to " + MAX_DIGITS + " digits: " + cardNumber);
+        }
+        long value = 0;
+        for (int i = 0; i < cardNumber.length(); i++) {
+            value = value * 10 + (cardNumber.charAt(i) - '0');
+        }
+        return ((long) cardNumber.length() << VALUE_BITS) | value;
+    }
+
+    public static String unpack(long packed) {
+        int length = (int) (packed >>> VALUE_BITS);
+        long value = packed & VALUE_MASK;
+        char[] digits = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(digits);
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+// The note cassettes of one terminal: a count per denomination, in the order of the
+// solver's denominations. All the counts sit in one array that is never modified, and
+// every change swaps in a new one with a single compare-and-set, so a dispense takes
+// all its notes or none and every reader sees counts some dispense left behind,
+// however many threads serve the terminal.
+public class CashCassettes {
+    // The notes Indian ATMs are loaded with
+    public static final DispenseSolver RUPEE_NOTES = new DispenseSolver(Money.ofRupees(2000), Money.ofRupees(500),
+            Money.ofRupees(200), Money.ofRupees(100));
+
+    private final DispenseSolver solver;
+    private final AtomicReference<int[]> counts;
+
+    public CashCassettes(DispenseSolver solver, int... counts) {
+        if (counts.length != solver.getDenominations().length) {
+            throw new IllegalArgumentException("One count per denomination expected");
+        }
+        this.solver = solver;
+        this.counts = new AtomicReference<>(counts.clone());
+    }
+
+    // Four freshly loaded rupee cassettes
+    public static CashCassettes fullRupeeLoad() {
+        return new CashCassettes(RUPEE_NOTES, 500, 2000, 2000, 2000);
+    }
+
+    public DispenseSolver getSolver() {
+        return solver;
+    }
+
+    // Takes the notes for amount out of the cassettes and returns how many of each, or
+    // null if the loaded notes cannot make it
+    public int[] reserve(long amount) {
+        while (true) {
+            int[] available = counts.get();
+            int[] notes = solver.solve(amount, available);
+            if (notes == null) {
+                return null;
+            }
+            int[] left = available.clone();
+            for (int d = 0; d < left.length; d++) {
+                left[d] -= notes[d];
+            }
+            if (counts.compareAndSet(available, left)) {
+                return notes;
+            }
+            // Another dispense or load changed the counts meanwhile; solve again against the new ones
+        }
+    }
+
+    // Puts back notes from reserve when the withdrawal did not go through
+    public void release(int[] notes) {
+        counts.updateAndGet(current -> {
+            int[] next = current.clone();
+            for (int d = 0; d < next.length; d++) {
+                next[d] += notes[d];
+            }
+            return next;
+        });
+    }
+
+    // Adds notes when the cassettes are replenished
+    public void load(int... notes) {
+        release(notes);
+    }
+
+    public int getCount(int denomination) {
+        return counts.get()[denomination];
+    }
+
+    // Cash left in the cassettes, in paise
+    public long getTotal() {
+        long[] denominations = solver.getDenominations();
+        int[] current = counts.get();
+        long total = 0;
+        for (int d = 0; d < denominations.length; d++) {
+            total += denominations[d] * current[d];
+        }
+        return total;
+    }
+}
@@ -0,0 +1,153 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Sub-balances for an account that receives far more credits than anything else, such
+// as a merchant or payroll account. Without them every transfer into the account takes
+// its lock stripe, so all payers queue on that one lock. With them a credit only locks
+// one of several shards, picked by thread: it is journaled under the shard's lock and
+// parked there as a pending amount and history row. The engine folds the pending
+// credits into the balance and history, in LSN order, whenever it has the account's
+// stripe anyway (before a debit, a history read or a snapshot), and the crediting
+// thread folds a shard that has filled up.
+//
+// A fold holds the account's stripe and every shard lock, so no credit is half-way
+// between the journal and its shard while it runs. Reads of the total go through a
+// sequence counter that is odd during a fold, so they never count a credit both in the
+// balance and in its shard.
+//
+// Shard locks are only taken after any stripes a thread needs, and a thread holding a
+// shard lock waits for nothing but the journal, so they cannot deadlock with the
+// stripes.
+public class CreditShards {
+    public static final int DEFAULT_SHARDS = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+    // Pending credits a shard holds before the crediting thread folds them
+    static final int FOLD_ROWS = 256;
+    // Per pending credit: LSN, timestamp, history type code, counterparty, amount
+    private static final int ROW_LONGS = 5;
+    private static final int INITIAL_ROWS = 16;
+
+    static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile long pending; // sum of the amounts below
+        long[] rows = new long[INITIAL_ROWS * ROW_LONGS];
+        int count;
+
+        // Called with lock held, after the credit has been journaled at lsn
+        void add(long lsn, long timestamp, TransactionType type, long counterparty, long amount) {
+            if ((count + 1) * ROW_LONGS > rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            int base = count++ * ROW_LONGS;
+            rows[base] = lsn;
+            rows[base + 1] = timestamp;
+            rows[base + 2] = type.code();
+            rows[base + 3] = counterparty;
+            rows[base + 4] = amount;
+            pending += amount;
+        }
+
+        boolean isFull() {
+            return count >= FOLD_ROWS;
+        }
+    }
+
+    private final Shard[] shards;
+    private final int mask;
+    private volatile int sequence; // odd while a fold is moving credits into the balance
+
+    public CreditShards() {
+        this(DEFAULT_SHARDS);
+    }
+
+    public CreditShards(int shards) {
+        int size = Integer.highestOneBit(Math.max(1, shards - 1) << 1);
+        this.shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.mask = size - 1;
+    }
+
+    // Workers are a fixed pool, so each keeps mostly to a shard of its own
+    Shard shardForThread() {
+        return shards[(int) Thread.currentThread().getId() & mask];
+    }
+
+    // Balance plus every credit not folded yet
+    long total(Account account) {
+        while (true) {
+            int before = sequence;
+            if ((before & 1) == 0) {
+                long total = account.getFoldedBalance();
+                for (Shard shard : shards) {
+                    total += shard.pending;
+                }
+                VarHandle.loadLoadFence();
+                if (sequence == before) {
+                    return total;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Moves every pending credit into the account's balance and history, oldest LSN
+    // first. The caller holds the account's stripe.
+    void fold(Account account) {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+        }
+        try {
+            int count = 0;
+            for (Shard shard : shards) {
+                count += shard.count;
+            }
+            if (count == 0) {
+                return;
+            }
+            sequence++;
+            VarHandle.storeStoreFence();
+            try {
+                // Each shard's rows are already in LSN order, so merging them needs only a cursor per shard
+                int[] next = new int[shards.length];
+                long lastLsn = account.getLastLsn();
+                for (int n = 0; n < count; n++) {
+                    Shard oldest = null;
+                    int oldestShard = 0;
+                    for (int i = 0; i < shards.length; i++) {
+                        Shard shard = shards[i];
+                        if (next[i] < shard.count && (oldest == null
+                                || shard.rows[next[i] * ROW_LONGS] < oldest.rows[next[oldestShard] * ROW_LONGS])) {
+                            oldest = shard;
+                            oldestShard = i;
+                        }
+                    }
+                    long[] rows = oldest.rows;
+                    int base = next[oldestShard]++ * ROW_LONGS;
+                    // A debit made since may already have moved the last LSN past this credit
+                    lastLsn = Math.max(lastLsn, rows[base]);
+                    if (rows[base + 2] == TransactionType.TRANSFER_IN.code()) {
+                        AtmEngine.applyTransferIn(account, rows[base + 3], rows[base + 4], rows[base + 1], lastLsn);
+                    } else {
+                        account.deposit(rows[base + 4], rows[base + 1], lastLsn);
+                    }
+                }
+                for (Shard shard : shards) {
+                    shard.pending = 0;
+                    shard.count = 0;
+                    if (shard.rows.length > FOLD_ROWS * ROW_LONGS) {
+                        shard.rows = new long[INITIAL_ROWS * ROW_LONGS];
+                    }
+                }
+            } finally {
+                sequence++;
+            }
+        } finally {
+            for (Shard shard : shards) {
+                shard.lock.unlock();
+            }
+        }
+    }
+}
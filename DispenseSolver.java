@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Chooses which notes to dispense for an amount. The ways of making each amount from
+// the denominations with at most maxNotes notes do not depend on what is loaded, so
+// they are enumerated once per amount, fewest notes first, and kept in a table indexed
+// by amount. Solving is then a scan of that short list against the current note
+// counts. Among the combinations the cassettes can cover it picks the one that uses
+// the smallest share of what each cassette has left, so cassettes drain evenly
+// instead of the largest note running out first; ties go to fewer notes.
+//
+// One solver is shared by every terminal loaded with the same denominations.
+public class DispenseSolver {
+    public static final int DEFAULT_MAX_NOTES = 40;
+    // Rupee notes need at most about 500 per amount; beyond this only the fewest-note ways are kept
+    private static final int MAX_COMBINATIONS = 1024;
+
+    private final long[] denominations; // paise, largest first
+    private final int maxNotes;
+    private final long unit; // every dispensable amount is a multiple of this
+    private final AtomicReferenceArray<int[][]> combinations;
+
+    public DispenseSolver(long... denominations) {
+        this(DEFAULT_MAX_NOTES, denominations);
+    }
+
+    public DispenseSolver(int maxNotes, long... denominations) {
+        if (denominations.length == 0 || maxNotes <= 0) {
+            throw new IllegalArgumentException("At least one denomination and one note are needed");
+        }
+        long[] sorted = denominations.clone();
+        Arrays.sort(sorted);
+        if (sorted[0] <= 0) {
+            throw new IllegalArgumentException("Denominations must be positive");
+        }
+        this.denominations = new long[sorted.length];
+        long gcd = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            this.denominations[i] = sorted[sorted.length - 1 - i];
+            gcd = gcd(gcd, sorted[i]);
+        }
+        this.maxNotes = maxNotes;
+        this.unit = gcd;
+        this.combinations = new AtomicReferenceArray<>((int) (this.denominations[0] * maxNotes / unit) + 1);
+    }
+
+    // Denominations in paise, largest first; note counts everywhere follow this order
+    public long[] getDenominations() {
+        return denominations.clone();
+    }
+
+    // Notes to dispense per denomination, or null if the counts cannot make the amount
+    public int[] solve(long amount, int[] available) {
+        int[][] ways = combinations(amount);
+        if (ways == null) {
+            return null;
+        }
+        int[] best = null;
+        double bestWear = Double.MAX_VALUE;
+        for (int[] way : ways) {
+            double wear = 0;
+            for (int d = 0; d < way.length && wear < bestWear; d++) {
+                if (way[d] > available[d]) {
+                    wear = Double.MAX_VALUE;
+                } else if (way[d] > 0) {
+                    wear += (double) way[d] / available[d];
+                }
+            }
+            if (wear < bestWear) {
+                best = way;
+                bestWear = wear;
+            }
+        }
+        return best == null ? null : best.clone();
+    }
+
+    // Every way of making amount, fewest notes first, or null if there is none
+    private int[][] combinations(long amount) {
+        if (amount <= 0 || amount % unit != 0 || amount / unit >= combinations.length()) {
+            return null;
+        }
+        int index = (int) (amount / unit);
+        int[][] ways = combinations.get(index);
+        if (ways == null) {
+            // Racing threads compute the same table; either copy is fine to keep
+            ways = enumerate(amount);
+            combinations.compareAndSet(index, null, ways);
+        }
+        return ways.length == 0 ? null : ways;
+    }
+
+    private int[][] enumerate(long amount) {
+        List<int[]> found = new ArrayList<>();
+        enumerate(amount, 0, maxNotes, new int[denominations.length], found);
+        found.sort((a, b) -> Integer.compare(Arrays.stream(a).sum(), Arrays.stream(b).sum()));
+        return found.subList(0, Math.min(found.size(), MAX_COMBINATIONS)).toArray(new int[0][]);
+    }
+
+    private void enumerate(long remaining, int d, int notesLeft, int[] counts, List<int[]> found) {
+        long denomination = denominations[d];
+        if (d == denominations.length - 1) {
+            if (remaining % denomination == 0 && remaining / denomination <= notesLeft) {
+                counts[d] = (int) (remaining / denomination);
+                found.add(counts.clone());
+            }
+            return;
+        }
+        for (int n = (int) Math.min(notesLeft, remaining / denomination); n >= 0; n--) {
+            counts[d] = n;
+            enumerate(remaining - n * denomination, d + 1, notesLeft - n, counts, found);
+        }
+        counts[d] = 0;
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -0,0 +1,36 @@
+// One committed transaction as seen by fraud scorers. The pipeline reuses a single
+// instance for every event, so scorers must copy what they want to keep.
+public final class FraudEvent {
+    private TransactionType type;
+    private long card;
+    private long counterparty;
+    private long amount;
+    private long balanceAfter;
+    private long timestamp;
+
+    void set(TransactionType type, long card, long counterparty, long amount, long balanceAfter, long timestamp) {
+        this.type = type;
+        this.card = card;
+        this.counterparty = counterparty;
+        this.amount = amount;
+        this.balanceAfter = balanceAfter;
+        this.timestamp = timestamp;
+    }
+
+    // WITHDRAWAL, DEPOSIT or TRANSFER_OUT; a transfer is one event seen from the payer's side
+    public TransactionType getType() { return type; }
+    // Packed card number, see CardNumbers
+    public long getCard() { return card; }
+    // Packed card number of the recipient of a transfer, else 0
+    public long getCounterparty() { return counterparty; }
+    // In paise
+    public long getAmount() { return amount; }
+    public long getBalanceAfter() { return balanceAfter; }
+    public long getTimestamp() { return timestamp; }
+
+    @Override
+    public String toString() {
+        return type + " " + CardNumbers.unpack(card)
+                + (counterparty != 0 ? " to " + CardNumbers.unpack(counterparty) : "") + " " + Money.format(amount);
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Streams every committed withdrawal, deposit and transfer to fraud scorers on a
+// thread of their own. The engine publishes into a fixed ring of preallocated slots:
+// a producer claims a sequence number with one compare-and-set, writes the slot's
+// fields and marks it published, so publishing never blocks and never allocates.
+// When the scorer thread has fallen a full ring behind, new events are dropped and
+// counted rather than holding up the transaction. The scorer thread reads slots in
+// sequence order into a reused FraudEvent and hands it to every scorer.
+//
+// Lag (events published but not yet scored), drops and the delay from publish to
+// scoring are kept for the metrics endpoint. Rules that must be able to refuse a
+// transaction cannot live here; see FraudRule.
+public class FraudPipeline implements AutoCloseable, MetricsEndpoint.Source {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // Told about every event a scorer flags; runs on the scorer thread
+    public interface AlertListener {
+        void flagged(FraudScorer scorer, FraudEvent event, String reason);
+    }
+
+    private static final long IDLE_PARK_NANOS = 100_000;
+
+    private final int mask;
+    private final AtomicLongArray published; // sequence number last written to each slot
+    private final TransactionType[] types;
+    private final long[] cards;
+    private final long[] counterparties;
+    private final long[] amounts;
+    private final long[] balances;
+    private final long[] timestamps;
+    private final long[] publishNanos;
+
+    private final AtomicLong claimed = new AtomicLong(); // next sequence to hand to a producer
+    private volatile long consumed; // next sequence the scorer thread will read
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder alerts = new LongAdder();
+    private final LatencyHistogram delay = new LatencyHistogram();
+
+    private final List<FraudScorer> scorers = new CopyOnWriteArrayList<>();
+    private final List<AlertListener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread consumer;
+    private volatile boolean running = true;
+
+    public FraudPipeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FraudPipeline(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        types = new TransactionType[size];
+        cards = new long[size];
+        counterparties = new long[size];
+        amounts = new long[size];
+        balances = new long[size];
+        timestamps = new long[size];
+        publishNanos = new long[size];
+        consumer = new Thread(this::consume, "fraud-scorer");
+        consumer.setDaemon(true);
+    }
+
+    public void addScorer(FraudScorer scorer) {
+        scorers.add(scorer);
+    }
+
+    public void addListener(AlertListener listener) {
+        listeners.add(listener);
+    }
+
+    public void start() {
+        consumer.start();
+    }
+
+    // Queues a committed transaction for scoring; returns false if it was dropped.
+    // Cards are packed (CardNumbers.pack); counterparty is 0 for cash.
+    public boolean publish(TransactionType type, long card, long counterparty, long amount, long balanceAfter,
+                           long timestamp) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed > mask) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        types[slot] = type;
+        cards[slot] = card;
+        counterparties[slot] = counterparty;
+        amounts[slot] = amount;
+        balances[slot] = balanceAfter;
+        timestamps[slot] = timestamp;
+        publishNanos[slot] = System.nanoTime();
+        published.set(slot, sequence); // volatile write makes the fields above visible to the reader
+        return true;
+    }
+
+    // Events published but not yet scored
+    public long getLag() {
+        return claimed.get() - consumed;
+    }
+
+    public long getScored() {
+        return consumed;
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getAlerts() {
+        return alerts.sum();
+    }
+
+    // Time from publish until the scorers had seen the event
+    public LatencyHistogram getDelay() {
+        return delay;
+    }
+
+    @Override
+    public void writeText(StringBuilder out) {
+        out.append("# TYPE atm_fraud_events_scored_total counter\natm_fraud_events_scored_total ")
+                .append(consumed).append('\n');
+        out.append("# TYPE atm_fraud_events_dropped_total counter\natm_fraud_events_dropped_total ")
+                .append(dropped.sum()).append('\n');
+        out.append("# TYPE atm_fraud_alerts_total counter\natm_fraud_alerts_total ").append(alerts.sum()).append('\n');
+        out.append("# TYPE atm_fraud_lag_events gauge\natm_fraud_lag_events ").append(getLag()).append('\n');
+        out.append("# TYPE atm_fraud_delay_seconds summary\n");
+        out.append("atm_fraud_delay_seconds{quantile=\"0.5\"} ").append(delay.percentile(50) / 1e9).append('\n');
+        out.append("atm_fraud_delay_seconds{quantile=\"0.99\"} ").append(delay.percentile(99) / 1e9).append('\n');
+    }
+
+    // Scores what has already been published, then stops the scorer thread
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void consume() {
+        FraudEvent event = new FraudEvent();
+        long next = consumed;
+        while (true) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                // Nothing published yet, or a producer has claimed the slot and is still writing it
+                if (!running && claimed.get() == next) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            event.set(types[slot], cards[slot], counterparties[slot], amounts[slot], balances[slot], timestamps[slot]);
+            long publishedAt = publishNanos[slot];
+            types[slot] = null;
+            consumed = ++next; // frees the slot for producers
+            for (FraudScorer scorer : scorers) {
+                score(scorer, event);
+            }
+            delay.record(System.nanoTime() - publishedAt);
+        }
+    }
+
+    private void score(FraudScorer scorer, FraudEvent event) {
+        String reason;
+        try {
+            reason = scorer.score(event);
+        } catch (RuntimeException e) {
+            System.err.println("Fraud scorer " + scorer.getClass().getSimpleName() + " failed: " + e);
+            return;
+        }
+        if (reason != null) {
+            alerts.increment();
+            for (AlertListener listener : listeners) {
+                listener.flagged(scorer, event, reason);
+            }
+        }
+    }
+}
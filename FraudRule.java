@@ -0,0 +1,8 @@
+// A check that must be able to refuse a debit before it happens. Rules run inline under
+// the account's lock on every withdrawal and transfer, so they have to be cheap and
+// must not block; anything slower belongs in a FraudScorer on the FraudPipeline.
+public interface FraudRule {
+    // The failure to report, or null to let the debit go ahead. Cards are packed
+    // (CardNumbers.pack); counterparty is 0 for a cash withdrawal.
+    AtmResult check(TransactionType type, long card, long counterparty, long amount, long balance);
+}
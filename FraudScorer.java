@@ -0,0 +1,7 @@
+// Looks at committed transactions on the fraud pipeline's thread, after the fact. A
+// scorer sees every event in publish order from that one thread, so it can keep plain,
+// unsynchronized state.
+public interface FraudScorer {
+    // Why the event looks suspicious, or null if it does not
+    String score(FraudEvent event);
+}
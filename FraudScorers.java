@@ -0,0 +1,172 @@
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Built-in fraud scorers. Their per-card state is only touched on the pipeline's
+// scorer thread, and is kept in a CardTable so it stays bounded however many cards
+// transact.
+public final class FraudScorers {
+    public static final int DEFAULT_CARDS = 1 << 17;
+
+    private FraudScorers() {
+    }
+
+    // Fixed-size open-addressed table of per-card state keyed by the packed card number.
+    // If a card's probe run is full, the entry seen least recently is evicted and the
+    // card starts over with fresh state. Not thread-safe.
+    static final class CardTable<T> {
+        private static final int MAX_PROBES = 8;
+
+        private final long[] keys; // packed card number, 0 = empty
+        private final long[] lastSeen;
+        private final Object[] values;
+        private final int mask;
+
+        CardTable(int capacity) {
+            int size = Integer.highestOneBit(Math.max(MAX_PROBES, capacity - 1) << 1);
+            keys = new long[size];
+            lastSeen = new long[size];
+            values = new Object[size];
+            mask = size - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(long packedCard, long now, Supplier<T> create) {
+            int start = home(packedCard);
+            int oldest = start;
+            for (int i = 0; i < MAX_PROBES; i++) {
+                int slot = (start + i) & mask;
+                if (keys[slot] == packedCard) {
+                    lastSeen[slot] = now;
+                    return (T) values[slot];
+                }
+                if (keys[slot] == 0) {
+                    oldest = slot;
+                    break;
+                }
+                if (lastSeen[slot] < lastSeen[oldest]) {
+                    oldest = slot;
+                }
+            }
+            T value = create.get();
+            keys[oldest] = packedCard;
+            lastSeen[oldest] = now;
+            values[oldest] = value;
+            return value;
+        }
+
+        private int home(long packedCard) {
+            long h = packedCard * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 29)) & mask;
+        }
+    }
+
+    // Flags a card that pays several recipients it has never paid before within a short window
+    public static final class RapidNewRecipients implements FraudScorer {
+        public static final int DEFAULT_NEW_RECIPIENTS = 3;
+        public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+        // Recipients remembered per card; an older one paid again counts as new
+        private static final int REMEMBERED = 32;
+
+        private static final class Payer {
+            final long[] recipients = new long[REMEMBERED];
+            int next;
+            final long[] newAt; // times of the most recent payments to new recipients, a ring
+            int newCount;
+
+            Payer(int newRecipients) {
+                newAt = new long[newRecipients];
+            }
+        }
+
+        private final int newRecipients;
+        private final long windowMillis;
+        private final CardTable<Payer> payers;
+
+        public RapidNewRecipients() {
+            this(DEFAULT_NEW_RECIPIENTS, DEFAULT_WINDOW_MILLIS, DEFAULT_CARDS);
+        }
+
+        public RapidNewRecipients(int newRecipients, long windowMillis, int cards) {
+            this.newRecipients = newRecipients;
+            this.windowMillis = windowMillis;
+            this.payers = new CardTable<>(cards);
+        }
+
+        @Override
+        public String score(FraudEvent event) {
+            if (event.getType() != TransactionType.TRANSFER_OUT) {
+                return null;
+            }
+            Payer payer = payers.get(event.getCard(), event.getTimestamp(), () -> new Payer(newRecipients));
+            for (long recipient : payer.recipients) {
+                if (recipient == event.getCounterparty()) {
+                    return null;
+                }
+            }
+            payer.recipients[payer.next++ % REMEMBERED] = event.getCounterparty();
+            payer.newAt[payer.newCount++ % newRecipients] = event.getTimestamp();
+            if (payer.newCount < newRecipients) {
+                return null;
+            }
+            // The ring holds the last newRecipients first payments, oldest next; flag if they all fall in the window
+            long oldest = payer.newAt[payer.newCount % newRecipients];
+            if (event.getTimestamp() - oldest < windowMillis) {
+                return newRecipients + " new recipients within " + TimeUnit.MILLISECONDS.toMinutes(windowMillis)
+                        + " minutes";
+            }
+            return null;
+        }
+    }
+
+    // Flags a debit far above what the card usually takes out: more than `deviations`
+    // standard deviations over an exponentially weighted mean of its earlier debits, and
+    // at least MIN_RATIO times that mean so a card that always takes the same amount is
+    // not flagged for a slightly larger one
+    public static final class UnusualAmount implements FraudScorer {
+        public static final double DEFAULT_DEVIATIONS = 4;
+        private static final double WEIGHT = 0.1; // of the newest debit in the running mean
+        private static final int MIN_SAMPLES = 5;
+        private static final double MIN_RATIO = 3;
+
+        private static final class Profile {
+            double mean;
+            double variance;
+            int samples;
+        }
+
+        private final double deviations;
+        private final CardTable<Profile> profiles;
+
+        public UnusualAmount() {
+            this(DEFAULT_DEVIATIONS, DEFAULT_CARDS);
+        }
+
+        public UnusualAmount(double deviations, int cards) {
+            this.deviations = deviations;
+            this.profiles = new CardTable<>(cards);
+        }
+
+        @Override
+        public String score(FraudEvent event) {
+            if (event.getType() == TransactionType.DEPOSIT) {
+                return null;
+            }
+            Profile profile = profiles.get(event.getCard(), event.getTimestamp(), Profile::new);
+            double amount = event.getAmount();
+            String reason = null;
+            if (profile.samples >= MIN_SAMPLES
+                    && amount > Math.max(profile.mean * MIN_RATIO, profile.mean + deviations * Math.sqrt(profile.variance))) {
+                reason = String.format("%s against a usual %s", Money.format(event.getAmount()),
+                        Money.format((long) profile.mean));
+            }
+            if (profile.samples++ == 0) {
+                profile.mean = amount;
+            } else {
+                double diff = amount - profile.mean;
+                profile.mean += WEIGHT * diff;
+                profile.variance = (1 - WEIGHT) * (profile.variance + WEIGHT * diff * diff);
+            }
+            return reason;
+        }
+    }
+}
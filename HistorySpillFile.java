@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shared append-only file of full history pages evicted from memory. Every page has
+// the same size, writers reserve their slot with one atomic add, and reads are
+// positional, so no lock is needed on either path.
+public class HistorySpillFile implements AutoCloseable {
+    public static final int PAGE_BYTES = TransactionHistory.PAGE_ROWS * TransactionHistory.ROW_LONGS * Long.BYTES;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final AtomicLong end;
+
+    public HistorySpillFile(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        // Drop a partially written trailing page
+        this.end = new AtomicLong(channel.size() / PAGE_BYTES * PAGE_BYTES);
+    }
+
+    public Path getFile() { return file; }
+
+    // Bytes in use, whole pages only
+    public long size() {
+        return end.get();
+    }
+
+    // Discards every page; only valid while nothing references them (full journal replay)
+    public void reset() throws IOException {
+        truncate(0);
+    }
+
+    // Discards the pages from length on; only valid while nothing references them, as for
+    // pages spilled after the snapshot being restored
+    public void truncate(long length) throws IOException {
+        if (length < end.get()) {
+            channel.truncate(length);
+            end.set(length);
+        }
+    }
+
+    public long write(long[] rows) {
+        long offset = end.getAndAdd(PAGE_BYTES);
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_BYTES);
+        buf.asLongBuffer().put(rows);
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not spill history page to " + file, e);
+        }
+        return offset;
+    }
+
+    public long[] read(long offset) {
+        ByteBuffer buf = ByteBuffer.allocate(PAGE_BYTES);
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0) {
+                    throw new IOException("History page at " + offset + " is truncated");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load history page from " + file, e);
+        }
+        buf.flip();
+        long[] rows = new long[TransactionHistory.PAGE_ROWS * TransactionHistory.ROW_LONGS];
+        buf.asLongBuffer().get(rows);
+        return rows;
+    }
+
+    // Makes spilled pages durable before a snapshot starts referring to them
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
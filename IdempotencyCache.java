@@ -0,0 +1,145 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Remembers the idempotency keys of recently committed withdrawals, deposits,
+// transfers and PIN changes, so a terminal that timed out and sends the same request
+// again gets the original result instead of moving the money twice. Keys are chosen
+// by the terminal, one per transaction, and are scoped to the card that makes the
+// request; 0 means the request has none.
+//
+// Each card keeps its last few keys in a small ring hanging off its Account, created
+// by its first keyed request and only touched under the card's stripe lock, so a
+// lookup is a scan of a handful of longs under a lock the engine already holds. A
+// key is forgotten once it is older than the TTL or has been pushed out of the ring.
+// Keys are written to the journal with the record they belong to and carried in
+// snapshots, so the cache is rebuilt on restart.
+//
+// Only committed requests are remembered: one that was refused changed nothing, and
+// sending it again simply tries again. A key sent with a different operation or
+// amount than it was first used for is refused with KEY_REUSED.
+public class IdempotencyCache implements MetricsEndpoint.Source {
+    public static final long DEFAULT_TTL_MILLIS = Long.getLong("atm.idempotency.ttl.ms",
+            TimeUnit.MINUTES.toMillis(15));
+    static final int SLOTS = 4;
+    // Per slot: key, request fingerprint, commit time, balance after
+    static final int FIELDS = 4;
+
+    // The recent keys of one card
+    static final class Recent {
+        final long[] entries = new long[SLOTS * FIELDS];
+        int next;
+    }
+
+    private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+    private final LongAdder replays = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    // A fresh random key for a new transaction; never 0
+    public static long newKey() {
+        long key;
+        do {
+            key = ThreadLocalRandom.current().nextLong();
+        } while (key == 0);
+        return key;
+    }
+
+    // What a key was used for; type is the journal record type
+    public static long fingerprint(byte type, long counterparty, long amount) {
+        long h = (type * 0x9E3779B97F4A7C15L) ^ counterparty;
+        h = (h ^ (h >>> 32)) * 0xBF58476D1CE4E5B9L ^ amount;
+        return h ^ (h >>> 29);
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public long getReplays() {
+        return replays.sum();
+    }
+
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    // The result to send again if key was already committed for this card, else null
+    public AtmResult replay(Account account, long key, long fingerprint, long nowMillis) {
+        Recent recent = account.getRecentRequests();
+        if (recent == null) {
+            return null;
+        }
+        long[] e = recent.entries;
+        for (int i = 0; i < e.length; i += FIELDS) {
+            if (e[i] == key && nowMillis - e[i + 2] < ttlMillis) {
+                if (e[i + 1] != fingerprint) {
+                    conflicts.increment();
+                    return AtmResult.failure(AtmResult.Status.KEY_REUSED,
+                            "This request id was already used for a different transaction.");
+                }
+                replays.increment();
+                return AtmResult.replayed(e[i + 3]);
+            }
+        }
+        return null;
+    }
+
+    // Remembers a committed request; also used to rebuild the cache on recovery
+    public void record(Account account, long key, long fingerprint, long balanceAfter, long timestamp) {
+        if (System.currentTimeMillis() - timestamp >= ttlMillis) {
+            return; // already expired, as when replaying an old journal
+        }
+        Recent recent = account.getRecentRequests();
+        if (recent == null) {
+            recent = new Recent();
+            account.setRecentRequests(recent);
+        }
+        long[] e = recent.entries;
+        int slot = -1;
+        for (int i = 0; i < e.length; i += FIELDS) {
+            if (e[i] == key) {
+                slot = i; // recovery can see a key both in the snapshot and in the journal
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = recent.next;
+            recent.next = (slot + FIELDS) % e.length;
+        }
+        e[slot] = key;
+        e[slot + 1] = fingerprint;
+        e[slot + 2] = timestamp;
+        e[slot + 3] = balanceAfter;
+    }
+
+    // The card's unexpired entries, FIELDS longs each, for a snapshot; null if none
+    long[] live(Account account, long nowMillis) {
+        Recent recent = account.getRecentRequests();
+        if (recent == null) {
+            return null;
+        }
+        long[] e = recent.entries;
+        long[] live = new long[e.length];
+        int n = 0;
+        for (int i = 0; i < e.length; i += FIELDS) {
+            if (e[i] != 0 && nowMillis - e[i + 2] < ttlMillis) {
+                System.arraycopy(e, i, live, n, FIELDS);
+                n += FIELDS;
+            }
+        }
+        return n == 0 ? null : Arrays.copyOf(live, n);
+    }
+
+    @Override
+    public void writeText(StringBuilder out) {
+        out.append("# TYPE atm_idempotent_replays_total counter\natm_idempotent_replays_total ")
+                .append(replays.sum()).append('\n');
+        out.append("# TYPE atm_idempotent_key_conflicts_total counter\natm_idempotent_key_conflicts_total ")
+                .append(conflicts.sum()).append('\n');
+    }
+}
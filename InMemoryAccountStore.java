@@ -0,0 +1,84 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Account records as heap objects in a concurrent map. The default store: fastest
+// for small deployments, but every account is a few objects the collector must trace.
+public class InMemoryAccountStore implements AccountStore {
+    private static final class Record {
+        volatile String pinHash;
+        volatile long balance;
+        volatile long lastLsn;
+
+        Record(String pinHash, long balance, long lastLsn) {
+            this.pinHash = pinHash;
+            this.balance = balance;
+            this.lastLsn = lastLsn;
+        }
+    }
+
+    private final Map<Long, Record> records = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean insert(long card, String pinHash, long balance, long lastLsn) {
+        return records.putIfAbsent(card, new Record(pinHash, balance, lastLsn)) == null;
+    }
+
+    @Override
+    public boolean contains(long card) {
+        return records.containsKey(card);
+    }
+
+    @Override
+    public long getBalance(long card) {
+        Record record = records.get(card);
+        return record == null ? NO_ACCOUNT : record.balance;
+    }
+
+    @Override
+    public long getLastLsn(long card) {
+        Record record = records.get(card);
+        return record == null ? NO_ACCOUNT : record.lastLsn;
+    }
+
+    @Override
+    public String getPinHash(long card) {
+        Record record = records.get(card);
+        return record == null ? null : record.pinHash;
+    }
+
+    @Override
+    public void setBalance(long card, long balance, long lastLsn) {
+        Record record = existing(card);
+        record.lastLsn = lastLsn;
+        record.balance = balance;
+    }
+
+    @Override
+    public void setPinHash(long card, String pinHash, long lastLsn) {
+        Record record = existing(card);
+        record.lastLsn = lastLsn;
+        record.pinHash = pinHash;
+    }
+
+    @Override
+    public long size() {
+        return records.size();
+    }
+
+    @Override
+    public void clear() {
+        records.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private Record existing(long card) {
+        Record record = records.get(card);
+        if (record == null) {
+            throw new IllegalArgumentException("No account for card " + CardNumbers.unpack(card));
+        }
+        return record;
+    }
+}
@@ -0,0 +1,233 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Account records in a SQL table, reached through any JDBC driver on the class path
+// (an embedded database such as H2 works with a URL like "jdbc:h2:./atm-accounts").
+// Like every AccountStore this is a cache of the journal, emptied and rebuilt each
+// time an engine starts, so it keeps a table of its own that nothing else may use.
+// A fixed pool of connections is opened up front; each connection prepares every
+// statement once and keeps it, so a call only binds parameters and executes.
+// Every call runs in auto-commit mode: the journal already orders and recovers
+// mutations, so the table needs no transactions of its own.
+public class JdbcAccountCache implements AccountStore {
+    private static final String TABLE = "atm_account_cache";
+    private static final String CREATE = "CREATE TABLE " + TABLE
+            + " (card BIGINT PRIMARY KEY, pin_hash VARCHAR(128) NOT NULL, balance BIGINT NOT NULL, last_lsn BIGINT NOT NULL)";
+    private static final String INSERT = "INSERT INTO " + TABLE + " (card, pin_hash, balance, last_lsn) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_CARD = "SELECT card FROM " + TABLE + " WHERE card = ?";
+    private static final String SELECT_BALANCE = "SELECT balance FROM " + TABLE + " WHERE card = ?";
+    private static final String SELECT_LAST_LSN = "SELECT last_lsn FROM " + TABLE + " WHERE card = ?";
+    private static final String SELECT_PIN_HASH = "SELECT pin_hash FROM " + TABLE + " WHERE card = ?";
+    private static final String UPDATE_BALANCE = "UPDATE " + TABLE + " SET balance = ?, last_lsn = ? WHERE card = ?";
+    private static final String UPDATE_PIN_HASH = "UPDATE " + TABLE + " SET pin_hash = ?, last_lsn = ? WHERE card = ?";
+    private static final String COUNT = "SELECT COUNT(*) FROM " + TABLE;
+    private static final String DELETE_ALL = "DELETE FROM " + TABLE;
+    private static final String UNIQUE_VIOLATION_CLASS = "23"; // SQLSTATE class for integrity constraint violations
+
+    // One pooled connection and the statements prepared on it so far
+    private static final class PooledConnection {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    private interface Query<T> {
+        T run(PooledConnection connection) throws SQLException;
+    }
+
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+
+    public JdbcAccountCache(String url, int poolSize) {
+        idle = new ArrayBlockingQueue<>(poolSize);
+        try {
+            for (int i = 0; i < poolSize; i++) {
+                PooledConnection pooled = new PooledConnection(DriverManager.getConnection(url));
+                pooled.connection.setAutoCommit(true);
+                all.add(pooled);
+                idle.add(pooled);
+            }
+            Connection first = all.get(0).connection;
+            if (!tableExists(first)) {
+                try (Statement create = first.createStatement()) {
+                    create.executeUpdate(CREATE);
+                }
+            }
+        } catch (SQLException e) {
+            close();
+            throw failed(e);
+        }
+    }
+
+    @Override
+    public boolean insert(long card, String pinHash, long balance, long lastLsn) {
+        return call(c -> {
+            PreparedStatement insert = c.prepare(INSERT);
+            insert.setLong(1, card);
+            insert.setString(2, pinHash);
+            insert.setLong(3, balance);
+            insert.setLong(4, lastLsn);
+            try {
+                insert.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                if (e.getSQLState() != null && e.getSQLState().startsWith(UNIQUE_VIOLATION_CLASS)) {
+                    return false;
+                }
+                throw e;
+            }
+        });
+    }
+
+    @Override
+    public boolean contains(long card) {
+        return call(c -> {
+            PreparedStatement select = c.prepare(SELECT_CARD);
+            select.setLong(1, card);
+            try (ResultSet rows = select.executeQuery()) {
+                return rows.next();
+            }
+        });
+    }
+
+    @Override
+    public long getBalance(long card) {
+        return selectLong(SELECT_BALANCE, card);
+    }
+
+    @Override
+    public long getLastLsn(long card) {
+        return selectLong(SELECT_LAST_LSN, card);
+    }
+
+    @Override
+    public String getPinHash(long card) {
+        return call(c -> {
+            PreparedStatement select = c.prepare(SELECT_PIN_HASH);
+            select.setLong(1, card);
+            try (ResultSet rows = select.executeQuery()) {
+                return rows.next() ? rows.getString(1) : null;
+            }
+        });
+    }
+
+    @Override
+    public void setBalance(long card, long balance, long lastLsn) {
+        update(card, c -> {
+            PreparedStatement update = c.prepare(UPDATE_BALANCE);
+            update.setLong(1, balance);
+            update.setLong(2, lastLsn);
+            update.setLong(3, card);
+            return update.executeUpdate();
+        });
+    }
+
+    @Override
+    public void setPinHash(long card, String pinHash, long lastLsn) {
+        update(card, c -> {
+            PreparedStatement update = c.prepare(UPDATE_PIN_HASH);
+            update.setString(1, pinHash);
+            update.setLong(2, lastLsn);
+            update.setLong(3, card);
+            return update.executeUpdate();
+        });
+    }
+
+    @Override
+    public long size() {
+        return call(c -> {
+            try (ResultSet rows = c.prepare(COUNT).executeQuery()) {
+                rows.next();
+                return rows.getLong(1);
+            }
+        });
+    }
+
+    @Override
+    public void clear() {
+        call(c -> c.prepare(DELETE_ALL).executeUpdate());
+    }
+
+    @Override
+    public void close() {
+        for (PooledConnection pooled : all) {
+            try {
+                pooled.connection.close(); // closes its statements too
+            } catch (SQLException e) {
+                System.err.println("Could not close account store connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private long selectLong(String sql, long card) {
+        return call(c -> {
+            PreparedStatement select = c.prepare(sql);
+            select.setLong(1, card);
+            try (ResultSet rows = select.executeQuery()) {
+                return rows.next() ? rows.getLong(1) : NO_ACCOUNT;
+            }
+        });
+    }
+
+    private void update(long card, Query<Integer> query) {
+        if (call(query) == 0) {
+            throw new IllegalArgumentException("No account for card " + CardNumbers.unpack(card));
+        }
+    }
+
+    // Runs query on a pooled connection, waiting for one if all are busy
+    private <T> T call(Query<T> query) {
+        PooledConnection pooled;
+        try {
+            pooled = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for an account store connection", e);
+        }
+        try {
+            return query.run(pooled);
+        } catch (SQLException e) {
+            throw failed(e);
+        } finally {
+            idle.add(pooled);
+        }
+    }
+
+    private static boolean tableExists(Connection connection) throws SQLException {
+        // Identifier case differs between databases, so match it either way
+        for (String name : new String[]{TABLE, TABLE.toUpperCase()}) {
+            try (ResultSet tables = connection.getMetaData().getTables(null, null, name, null)) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static IllegalStateException failed(SQLException e) {
+        return new IllegalStateException("Account store query failed: " + e.getMessage(), e);
+    }
+}
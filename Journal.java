@@ -0,0 +1,494 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead journal of account mutations.
+//
+// Records are appended to an in-memory buffer under a short lock and assigned
+// increasing sequence numbers (LSNs). A single flusher thread writes whole batches
+// to the file and optionally fsyncs them, so concurrent callers share one fsync
+// (group commit). Callers block in awaitDurable until their LSN has been flushed.
+//
+// On-disk record: [int payload length][int CRC32 of payload][payload], where the
+// payload is [long lsn][long timestamp][byte type][type-specific fields]. Deposits,
+// withdrawals, transfers and PIN changes made with an idempotency key end with
+// [long key]; records written without one, or by older versions, stop before it.
+public class Journal implements AutoCloseable {
+    public static final byte OPEN = 1;
+    public static final byte DEPOSIT = 2;
+    public static final byte WITHDRAWAL = 3;
+    public static final byte TRANSFER = 4;
+    public static final byte PIN_CHANGE = 5;
+
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_RECORD_BYTES = 4096;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int READ_BUFFER_BYTES = 8 << 20;
+
+    // Receives records in LSN order during replay; requestKey is 0 if the record has none
+    public interface Handler {
+        void open(long lsn, long timestamp, String cardNumber, String pinHash, long balance);
+        void deposit(long lsn, long timestamp, String cardNumber, long amount, long balanceAfter, long requestKey);
+        void withdrawal(long lsn, long timestamp, String cardNumber, long amount, long balanceAfter,
+                        long requestKey);
+        void transfer(long lsn, long timestamp, String fromCardNumber, String toCardNumber, long amount,
+                      long fromBalanceAfter, long toBalanceAfter, long requestKey);
+        void pinChange(long lsn, long timestamp, String cardNumber, String pinHash, long requestKey);
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final boolean fsync;
+    private final int groupCommitRecords;
+    private final long groupCommitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private ByteBuffer flushing = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private int activeRecords;
+    private long firstPendingNanos;
+    private long lastLsn;
+    private long durableLsn;
+    private long appendedBytes;
+    private int waiters;
+    private boolean replayed;
+    private boolean closed;
+    private IOException failure;
+    private Thread flusher;
+
+    public Journal(Path file) throws IOException {
+        this(file, true, 512, 0);
+    }
+
+    // fsync: force each group commit to disk; groupCommitRecords: flush as soon as this
+    // many records are pending; groupCommitMicros: how long to linger for more records
+    public Journal(Path file, boolean fsync, int groupCommitRecords, long groupCommitMicros) throws IOException {
+        this.file = file;
+        this.fsync = fsync;
+        this.groupCommitRecords = Math.max(1, groupCommitRecords);
+        this.groupCommitNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitMicros);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    public Path getFile() { return file; }
+
+    // Feeds every intact record to the handler, truncates a torn tail and starts the
+    // flusher. Must be called exactly once, before the first append.
+    public void replay(Handler handler) throws IOException {
+        replay(handler, new Checkpoint(0, 0));
+    }
+
+    // Like replay(Handler), but starts reading at a checkpoint taken by an earlier run
+    public void replay(Handler handler, Checkpoint from) throws IOException {
+        lock.lock();
+        try {
+            if (replayed) {
+                throw new IllegalStateException("Journal already replayed");
+            }
+            if (from.getOffset() > channel.size()) {
+                throw new IOException("Checkpoint offset " + from.getOffset() + " is past the end of " + file);
+            }
+            lastLsn = from.getLsn();
+            long end = readRecords(handler, from.getOffset());
+            channel.truncate(end);
+            channel.position(end);
+            appendedBytes = end;
+            durableLsn = lastLsn;
+            replayed = true;
+            flusher = new Thread(this::flushLoop, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long appendOpen(long timestamp, String cardNumber, String pinHash, long balance) {
+        lock.lock();
+        try {
+            ByteBuffer buf = beginRecord(timestamp, OPEN);
+            putString(buf, cardNumber);
+            putString(buf, pinHash);
+            buf.putLong(balance);
+            return endRecord(buf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long appendDeposit(long timestamp, String cardNumber, long amount, long balanceAfter, long requestKey) {
+        return appendAmount(DEPOSIT, timestamp, cardNumber, amount, balanceAfter, requestKey);
+    }
+
+    public long appendWithdrawal(long timestamp, String cardNumber, long amount, long balanceAfter,
+                                 long requestKey) {
+        return appendAmount(WITHDRAWAL, timestamp, cardNumber, amount, balanceAfter, requestKey);
+    }
+
+    public long appendTransfer(long timestamp, String fromCardNumber, String toCardNumber, long amount,
+                               long fromBalanceAfter, long toBalanceAfter, long requestKey) {
+        lock.lock();
+        try {
+            ByteBuffer buf = beginRecord(timestamp, TRANSFER);
+            putString(buf, fromCardNumber);
+            putString(buf, toCardNumber);
+            buf.putLong(amount);
+            buf.putLong(fromBalanceAfter);
+            buf.putLong(toBalanceAfter);
+            putRequestKey(buf, requestKey);
+            return endRecord(buf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long appendPinChange(long timestamp, String cardNumber, String pinHash, long requestKey) {
+        lock.lock();
+        try {
+            ByteBuffer buf = beginRecord(timestamp, PIN_CHANGE);
+            putString(buf, cardNumber);
+            putString(buf, pinHash);
+            putRequestKey(buf, requestKey);
+            return endRecord(buf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until every record up to and including lsn is on disk
+    public void awaitDurable(long lsn) {
+        lock.lock();
+        try {
+            waiters++;
+            try {
+                while (durableLsn < lsn) {
+                    checkFailure();
+                    pending.signal();
+                    durable.awaitUninterruptibly();
+                }
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getLastLsn() {
+        lock.lock();
+        try {
+            return lastLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Position just past the last appended record; replaying from here yields only newer records
+    public Checkpoint checkpoint() {
+        lock.lock();
+        try {
+            return new Checkpoint(lastLsn, appendedBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (replayed) {
+                long last = lastLsn;
+                while (durableLsn < last && failure == null) {
+                    pending.signal();
+                    durable.awaitUninterruptibly();
+                }
+            }
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+
+    private long appendAmount(byte type, long timestamp, String cardNumber, long amount, long balanceAfter,
+                              long requestKey) {
+        lock.lock();
+        try {
+            ByteBuffer buf = beginRecord(timestamp, type);
+            putString(buf, cardNumber);
+            buf.putLong(amount);
+            buf.putLong(balanceAfter);
+            putRequestKey(buf, requestKey);
+            return endRecord(buf);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held; reserves header space and writes the payload prefix
+    private ByteBuffer beginRecord(long timestamp, byte type) {
+        if (!replayed) {
+            throw new IllegalStateException("Journal must be replayed before appending");
+        }
+        checkFailure();
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        while (active.remaining() < MAX_RECORD_BYTES) {
+            pending.signal();
+            spaceAvailable.awaitUninterruptibly();
+            checkFailure();
+        }
+        active.mark();
+        active.position(active.position() + HEADER_BYTES);
+        active.putLong(lastLsn + 1);
+        active.putLong(timestamp);
+        active.put(type);
+        return active;
+    }
+
+    private long endRecord(ByteBuffer buf) {
+        int end = buf.position();
+        buf.reset();
+        int start = buf.position();
+        int payloadLength = end - start - HEADER_BYTES;
+
+        ByteBuffer payload = buf.duplicate();
+        payload.position(start + HEADER_BYTES).limit(end);
+        crc.reset();
+        crc.update(payload);
+
+        buf.putInt(payloadLength);
+        buf.putInt((int) crc.getValue());
+        buf.position(end);
+        appendedBytes += end - start;
+
+        if (activeRecords++ == 0) {
+            firstPendingNanos = System.nanoTime();
+        }
+        if (activeRecords >= groupCommitRecords || waiters > 0) {
+            pending.signal();
+        }
+        return ++lastLsn;
+    }
+
+    private void flushLoop() {
+        lock.lock();
+        try {
+            while (true) {
+                while (activeRecords == 0 && !closed) {
+                    pending.awaitUninterruptibly();
+                }
+                if (activeRecords == 0) {
+                    return; // closed and drained
+                }
+                // Linger briefly so more records can join this group commit
+                while (!closed && activeRecords < groupCommitRecords && waiters == 0) {
+                    long remaining = groupCommitNanos - (System.nanoTime() - firstPendingNanos);
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        pending.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                ByteBuffer batch = active;
+                active = flushing;
+                flushing = batch;
+                int records = activeRecords;
+                activeRecords = 0;
+                long batchLsn = lastLsn;
+                spaceAvailable.signalAll();
+
+                lock.unlock();
+                IOException error = null;
+                AtmEvents.JournalFlush event = new AtmEvents.JournalFlush();
+                event.begin();
+                try {
+                    batch.flip();
+                    long bytes = batch.remaining();
+                    while (batch.hasRemaining()) {
+                        channel.write(batch);
+                    }
+                    if (fsync) {
+                        channel.force(false);
+                    }
+                    if (event.shouldCommit()) {
+                        event.records = records;
+                        event.bytes = bytes;
+                        event.forced = fsync;
+                        event.commit();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    batch.clear();
+                    lock.lock();
+                }
+
+                if (error != null) {
+                    failure = error;
+                    durable.signalAll();
+                    spaceAvailable.signalAll();
+                    return;
+                }
+                durableLsn = batchLsn;
+                durable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed: " + file, failure);
+        }
+    }
+
+    private long readRecords(Handler handler, long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        byte[] strings = new byte[256];
+        CRC32 check = new CRC32();
+        channel.position(offset);
+        buf.limit(0);
+
+        while (true) {
+            if (buf.remaining() < HEADER_BYTES && !fill(buf, HEADER_BYTES)) {
+                return offset;
+            }
+            int length = buf.getInt(buf.position());
+            int expectedCrc = buf.getInt(buf.position() + 4);
+            if (length <= 0 || length > MAX_RECORD_BYTES) {
+                return offset; // torn or garbage tail
+            }
+            if (buf.remaining() < HEADER_BYTES + length && !fill(buf, HEADER_BYTES + length)) {
+                return offset;
+            }
+            buf.position(buf.position() + HEADER_BYTES);
+            ByteBuffer payload = buf.slice();
+            payload.limit(length);
+            check.reset();
+            check.update(payload.duplicate());
+            if ((int) check.getValue() != expectedCrc) {
+                return offset;
+            }
+            try {
+                dispatch(payload, handler, strings);
+            } catch (java.nio.BufferUnderflowException e) {
+                return offset;
+            }
+            buf.position(buf.position() + length);
+            offset += HEADER_BYTES + length;
+        }
+    }
+
+    // Compacts buf and reads until at least need bytes are available or EOF is hit
+    private boolean fill(ByteBuffer buf, int need) throws IOException {
+        buf.compact();
+        while (buf.position() < need) {
+            if (channel.read(buf) < 0) {
+                buf.flip();
+                return false;
+            }
+        }
+        buf.flip();
+        return true;
+    }
+
+    private void dispatch(ByteBuffer p, Handler handler, byte[] scratch) throws IOException {
+        long lsn = p.getLong();
+        long timestamp = p.getLong();
+        byte type = p.get();
+        lastLsn = lsn;
+        switch (type) {
+            case OPEN:
+                handler.open(lsn, timestamp, getString(p, scratch), getString(p, scratch), p.getLong());
+                break;
+            case DEPOSIT:
+                handler.deposit(lsn, timestamp, getString(p, scratch), p.getLong(), p.getLong(), getRequestKey(p));
+                break;
+            case WITHDRAWAL:
+                handler.withdrawal(lsn, timestamp, getString(p, scratch), p.getLong(), p.getLong(),
+                        getRequestKey(p));
+                break;
+            case TRANSFER:
+                handler.transfer(lsn, timestamp, getString(p, scratch), getString(p, scratch),
+                        p.getLong(), p.getLong(), p.getLong(), getRequestKey(p));
+                break;
+            case PIN_CHANGE:
+                handler.pinChange(lsn, timestamp, getString(p, scratch), getString(p, scratch), getRequestKey(p));
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type + " at LSN " + lsn);
+        }
+    }
+
+    // A journal position paired with the LSN of the last record before it
+    public static final class Checkpoint {
+        private final long lsn;
+        private final long offset;
+
+        public Checkpoint(long lsn, long offset) {
+            this.lsn = lsn;
+            this.offset = offset;
+        }
+
+        public long getLsn() { return lsn; }
+        public long getOffset() { return offset; }
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("Value too long for journal: " + s);
+        }
+        buf.put((byte) bytes.length);
+        buf.put(bytes);
+    }
+
+    private static void putRequestKey(ByteBuffer buf, long requestKey) {
+        if (requestKey != 0) {
+            buf.putLong(requestKey);
+        }
+    }
+
+    private static long getRequestKey(ByteBuffer payload) {
+        return payload.hasRemaining() ? payload.getLong() : 0;
+    }
+
+    private static String getString(ByteBuffer buf, byte[] scratch) {
+        int length = buf.get() & 0xFF;
+        buf.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
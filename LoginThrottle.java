@@ -0,0 +1,145 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Failed PIN attempts per card in a fixed-size open-addressed table keyed by the
+// packed card number, so memory stays bounded however many cards an attacker tries.
+// After maxFailures failures, each within failureWindow of the previous one, the
+// card is locked until failureWindow after the last failure. Entries whose window
+// has passed are free for reuse; if a probe run is full, the entry with the oldest
+// failure is evicted. The table is split into segments with one lock each, so
+// logins for different cards rarely touch the same lock.
+public class LoginThrottle {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    public static final long DEFAULT_FAILURE_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final int SEGMENTS = 256;
+    private static final int MAX_PROBES = 8;
+    private static final int COUNT_SHIFT = 56;
+    private static final long TIME_MASK = (1L << COUNT_SHIFT) - 1;
+
+    private final long[] keys; // packed card number, 0 = empty
+    private final long[] states; // failure count in the top 8 bits, last failure millis below
+    private final ReentrantLock[] locks = new ReentrantLock[SEGMENTS];
+    private final int segmentMask;
+    private final int maxFailures;
+    private final long failureWindowMillis;
+
+    public LoginThrottle() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_FAILURES, DEFAULT_FAILURE_WINDOW_MILLIS);
+    }
+
+    public LoginThrottle(int capacity, int maxFailures, long failureWindowMillis) {
+        int segmentSize = Integer.highestOneBit(Math.max(MAX_PROBES, capacity / SEGMENTS - 1) << 1);
+        keys = new long[segmentSize * SEGMENTS];
+        states = new long[segmentSize * SEGMENTS];
+        segmentMask = segmentSize - 1;
+        this.maxFailures = Math.min(maxFailures, 255);
+        this.failureWindowMillis = failureWindowMillis;
+        for (int i = 0; i < SEGMENTS; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    // Time the card unlocks, or 0 if it is not locked
+    public long lockedUntil(long packedCard, long nowMillis) {
+        int segment = segment(packedCard);
+        ReentrantLock lock = locks[segment];
+        lock.lock();
+        try {
+            int slot = find(segment, packedCard);
+            if (slot < 0) {
+                return 0;
+            }
+            long state = states[slot];
+            long until = (state & TIME_MASK) + failureWindowMillis;
+            return (int) (state >>> COUNT_SHIFT) >= maxFailures && nowMillis < until ? until : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns true if this failure locked the card
+    public boolean recordFailure(long packedCard, long nowMillis) {
+        int segment = segment(packedCard);
+        ReentrantLock lock = locks[segment];
+        lock.lock();
+        try {
+            int slot = find(segment, packedCard);
+            int failures = 0;
+            if (slot >= 0) {
+                long state = states[slot];
+                if (nowMillis - (state & TIME_MASK) < failureWindowMillis) {
+                    failures = (int) (state >>> COUNT_SHIFT);
+                }
+            } else {
+                slot = claim(segment, packedCard, nowMillis);
+                keys[slot] = packedCard;
+            }
+            failures = Math.min(failures + 1, 255);
+            states[slot] = ((long) failures << COUNT_SHIFT) | (nowMillis & TIME_MASK);
+            return failures == maxFailures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordSuccess(long packedCard) {
+        int segment = segment(packedCard);
+        ReentrantLock lock = locks[segment];
+        lock.lock();
+        try {
+            int slot = find(segment, packedCard);
+            if (slot >= 0) {
+                states[slot] = 0; // expired, so the slot can be reused
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int find(int segment, long packedCard) {
+        int base = segment * (segmentMask + 1);
+        int start = home(packedCard);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = base + ((start + i) & segmentMask);
+            if (keys[slot] == packedCard) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // An empty or expired slot in the probe run, else the one with the oldest failure
+    private int claim(int segment, long packedCard, long nowMillis) {
+        int base = segment * (segmentMask + 1);
+        int start = home(packedCard);
+        int oldest = -1;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int slot = base + ((start + i) & segmentMask);
+            long time = states[slot] & TIME_MASK;
+            if (keys[slot] == 0 || nowMillis - time >= failureWindowMillis) {
+                return slot;
+            }
+            if (time < oldestTime) {
+                oldestTime = time;
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private int segment(long packedCard) {
+        return (int) (mix(packedCard) >>> 32) & (SEGMENTS - 1);
+    }
+
+    private int home(long packedCard) {
+        return (int) mix(packedCard) & segmentMask;
+    }
+
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
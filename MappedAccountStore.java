@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Account records in a memory-mapped open-addressing table with linear probing. Each
+// record is one 128-byte slot: packed card (0 = empty), balance, last LSN, a PIN word
+// and the PIN hash in ASCII. Nothing lives on the Java heap, so the table adds no GC
+// work however many accounts it holds, and lookups and balance updates never allocate.
+// Capacity is fixed when the file is created; reopening the file keeps its records.
+// A slot is published by writing its card last, and the PIN word is a sequence lock,
+// so readers never see a half-written record or PIN hash.
+public class MappedAccountStore implements AccountStore {
+    private static final long MAGIC = 0x41544D53544F5231L; // "ATMSTOR1"
+    private static final int HEADER_BYTES = 4096;
+    private static final int SLOTS_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int SIZE_OFFSET = 24;
+
+    private static final int SLOT_SHIFT = 7;
+    private static final int CARD = 0;
+    private static final int BALANCE = 8;
+    private static final int LAST_LSN = 16;
+    private static final int PIN_WORD = 24; // version in the top half (odd while being written), length below
+    private static final int PIN_HASH = 32;
+    private static final int MAX_PIN_HASH_BYTES = (1 << SLOT_SHIFT) - PIN_HASH;
+
+    // Each mapping covers at most 1 GiB, well inside the 2 GiB limit of a buffer
+    private static final int SEGMENT_SHIFT = 30 - SLOT_SHIFT;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long slotMask;
+    private final long capacity;
+    private volatile long size;
+
+    public MappedAccountStore(Path file, long capacity) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean created = channel.size() == 0;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.nativeOrder());
+            if (created) {
+                // Keep the load factor at or below 3/4 so probe runs stay short
+                long slots = Long.highestOneBit(Math.max(2, capacity + capacity / 3 - 1)) << 1;
+                header.putLong(SLOTS_OFFSET, slots);
+                header.putLong(CAPACITY_OFFSET, capacity);
+                header.putLong(SIZE_OFFSET, 0);
+                header.putLong(0, MAGIC);
+            } else if (header.getLong(0) != MAGIC) {
+                throw new IOException("Not an account store: " + file);
+            }
+            long slots = header.getLong(SLOTS_OFFSET);
+            this.slotMask = slots - 1;
+            this.capacity = header.getLong(CAPACITY_OFFSET);
+            this.size = header.getLong(SIZE_OFFSET);
+
+            // The file grows to its full length here but stays sparse until slots are used
+            long slotsPerSegment = Math.min(slots, 1L << SEGMENT_SHIFT);
+            segments = new MappedByteBuffer[(int) (slots / slotsPerSegment)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = HEADER_BYTES + ((long) i << (SEGMENT_SHIFT + SLOT_SHIFT));
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, slotsPerSegment << SLOT_SHIFT);
+                segments[i].order(ByteOrder.nativeOrder()); // plain puts must match the VarHandle's layout
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized boolean insert(long card, String pinHash, long balance, long lastLsn) {
+        long slot = home(card);
+        while (true) {
+            long key = (long) LONGS.getAcquire(segment(slot), offset(slot));
+            if (key == card) {
+                return false;
+            }
+            if (key == 0) {
+                break;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        if (size == capacity) {
+            throw new IllegalStateException("Account store is full: " + capacity + " accounts");
+        }
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        byte[] pin = pinHashBytes(pinHash);
+        segment.putLong(offset + BALANCE, balance);
+        segment.putLong(offset + LAST_LSN, lastLsn);
+        segment.put(offset + PIN_HASH, pin);
+        segment.putLong(offset + PIN_WORD, pin.length);
+        LONGS.setRelease(segment, offset + CARD, card);
+        size++;
+        header.putLong(SIZE_OFFSET, size);
+        return true;
+    }
+
+    @Override
+    public boolean contains(long card) {
+        return find(card) >= 0;
+    }
+
+    @Override
+    public long getBalance(long card) {
+        long slot = find(card);
+        return slot < 0 ? NO_ACCOUNT : (long) LONGS.getAcquire(segment(slot), offset(slot) + BALANCE);
+    }
+
+    @Override
+    public long getLastLsn(long card) {
+        long slot = find(card);
+        return slot < 0 ? NO_ACCOUNT : (long) LONGS.getAcquire(segment(slot), offset(slot) + LAST_LSN);
+    }
+
+    @Override
+    public String getPinHash(long card) {
+        long slot = find(card);
+        if (slot < 0) {
+            return null;
+        }
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        byte[] bytes = new byte[MAX_PIN_HASH_BYTES];
+        while (true) {
+            long word = (long) LONGS.getAcquire(segment, offset + PIN_WORD);
+            if ((word & (1L << 32)) != 0) {
+                Thread.onSpinWait(); // a change is being written
+                continue;
+            }
+            int length = (int) word;
+            segment.get(offset + PIN_HASH, bytes, 0, length);
+            VarHandle.loadLoadFence();
+            if ((long) LONGS.getAcquire(segment, offset + PIN_WORD) == word) {
+                return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    @Override
+    public void setBalance(long card, long balance, long lastLsn) {
+        long slot = existing(card);
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        LONGS.setRelease(segment, offset + LAST_LSN, lastLsn);
+        LONGS.setRelease(segment, offset + BALANCE, balance);
+    }
+
+    @Override
+    public void setPinHash(long card, String pinHash, long lastLsn) {
+        byte[] pin = pinHashBytes(pinHash);
+        long slot = existing(card);
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        long version = ((long) LONGS.getAcquire(segment, offset + PIN_WORD) >>> 32) + 1;
+        LONGS.setVolatile(segment, offset + PIN_WORD, version << 32);
+        VarHandle.storeStoreFence();
+        segment.put(offset + PIN_HASH, pin);
+        LONGS.setRelease(segment, offset + PIN_WORD, ((version + 1) << 32) | pin.length);
+        LONGS.setRelease(segment, offset + LAST_LSN, lastLsn);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    // Empties the used slots; slots never touched stay sparse
+    @Override
+    public synchronized void clear() {
+        for (long slot = 0; slot <= slotMask; slot++) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            if ((long) LONGS.getAcquire(segment, offset) != 0) {
+                LONGS.setRelease(segment, offset + CARD, 0L);
+                segment.putLong(offset + BALANCE, 0);
+                segment.putLong(offset + LAST_LSN, 0);
+                segment.putLong(offset + PIN_WORD, 0);
+            }
+        }
+        size = 0;
+        header.putLong(SIZE_OFFSET, 0);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        header.force();
+        channel.close();
+    }
+
+    // Slot holding card, or -1; the table is never full, so every probe run ends at an empty slot
+    private long find(long card) {
+        long slot = home(card);
+        while (true) {
+            long key = (long) LONGS.getAcquire(segment(slot), offset(slot));
+            if (key == card) {
+                return slot;
+            }
+            if (key == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    private long existing(long card) {
+        long slot = find(card);
+        if (slot < 0) {
+            throw new IllegalArgumentException("No account for card " + CardNumbers.unpack(card));
+        }
+        return slot;
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) ((slot & SEGMENT_MASK) << SLOT_SHIFT);
+    }
+
+    private long home(long card) {
+        long h = card * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 29)) & slotMask;
+    }
+
+    private static byte[] pinHashBytes(String pinHash) {
+        byte[] bytes = pinHash.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > MAX_PIN_HASH_BYTES) {
+            throw new IllegalArgumentException("PIN hashes are limited to " + MAX_PIN_HASH_BYTES + " bytes");
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,59 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+// Serves AtmMetrics and other sources as plain text at GET /metrics for a scraper such
+// as Prometheus. Runs on the JDK's built-in HTTP server with a single thread, off the
+// request path. There is no authentication, so it listens on loopback unless given
+// another host explicitly.
+public class MetricsEndpoint implements AutoCloseable {
+    // Anything that can append its metrics in the Prometheus text format
+    public interface Source {
+        void writeText(StringBuilder out);
+    }
+
+    private final HttpServer server;
+
+    public MetricsEndpoint(int port, Source... sources) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), sources);
+    }
+
+    public MetricsEndpoint(InetSocketAddress address, Source... sources) throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                StringBuilder text = new StringBuilder(4096);
+                for (Source source : sources) {
+                    source.writeText(text);
+                }
+                send(exchange, text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private static void send(HttpExchange exchange, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
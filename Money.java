@@ -0,0 +1,138 @@
+// Money is held as a long count of paise; this class parses and formats those values.
+// Formatting groups digits the Indian way (₹12,34,56,789.00) without String.format.
+public final class Money {
+    public static final long PAISE_PER_RUPEE = 100;
+
+    private static final int MAX_CHARS = 32;
+    private static final int CACHE_SIZE = 1024;
+
+    private static final ThreadLocal<char[]> BUFFER = ThreadLocal.withInitial(() -> new char[MAX_CHARS]);
+
+    // Small direct-mapped cache of recently formatted values; entries are immutable,
+    // so racing writers can only replace one valid entry with another
+    private static final Entry[] CACHE = new Entry[CACHE_SIZE];
+
+    private Money() {
+    }
+
+    public static long ofRupees(long rupees) {
+        return Math.multiplyExact(rupees, PAISE_PER_RUPEE);
+    }
+
+    // Parses "500", "500.5" or "500.50" into paise; rejects anything finer than a paisa
+    public static long parse(String text) {
+        try {
+            return parseExact(text.trim());
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    private static long parseExact(String s) {
+        int length = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (s.charAt(0) == '-' || s.charAt(0) == '+')) {
+            negative = s.charAt(0) == '-';
+            i++;
+        }
+
+        long rupees = 0;
+        int digits = 0;
+        while (i < length && s.charAt(i) != '.') {
+            rupees = Math.addExact(Math.multiplyExact(rupees, 10), digit(s, i++));
+            digits++;
+        }
+
+        long paise = 0;
+        int fraction = 0;
+        if (i < length) {
+            i++; // skip '.'
+            while (i < length) {
+                if (++fraction > 2) {
+                    throw new NumberFormatException("Too many decimal places: " + s);
+                }
+                paise = paise * 10 + digit(s, i++);
+            }
+            if (fraction == 1) {
+                paise *= 10;
+            }
+        }
+        if (digits == 0 && fraction == 0) {
+            throw new NumberFormatException("Not an amount: " + s);
+        }
+
+        long value = Math.addExact(Math.multiplyExact(rupees, PAISE_PER_RUPEE), paise);
+        return negative ? -value : value;
+    }
+
+    public static String format(long paise) {
+        int slot = (int) (paise ^ (paise >>> 32)) & (CACHE_SIZE - 1);
+        Entry entry = CACHE[slot];
+        if (entry != null && entry.paise == paise) {
+            return entry.text;
+        }
+        char[] buf = BUFFER.get();
+        int start = fill(buf, paise);
+        String text = new String(buf, start, MAX_CHARS - start);
+        CACHE[slot] = new Entry(paise, text);
+        return text;
+    }
+
+    public static StringBuilder formatTo(StringBuilder out, long paise) {
+        char[] buf = BUFFER.get();
+        int start = fill(buf, paise);
+        return out.append(buf, start, MAX_CHARS - start);
+    }
+
+    // Writes the formatted value right-aligned into buf and returns its start offset
+    private static int fill(char[] buf, long paise) {
+        int pos = MAX_CHARS;
+        // Work with a non-positive value so Long.MIN_VALUE needs no special case
+        long v = paise < 0 ? paise : -paise;
+
+        long fraction = -(v % PAISE_PER_RUPEE);
+        v /= PAISE_PER_RUPEE;
+        buf[--pos] = (char) ('0' + fraction % 10);
+        buf[--pos] = (char) ('0' + fraction / 10);
+        buf[--pos] = '.';
+
+        // Last three digits form one group, then groups of two (lakh, crore, ...)
+        int written = 0;
+        int groupSize = 3;
+        do {
+            if (written == groupSize) {
+                buf[--pos] = ',';
+                written = 0;
+                groupSize = 2;
+            }
+            buf[--pos] = (char) ('0' - v % 10);
+            v /= 10;
+            written++;
+        } while (v != 0);
+
+        buf[--pos] = '₹';
+        if (paise < 0) {
+            buf[--pos] = '-';
+        }
+        return pos;
+    }
+
+    private static int digit(String s, int index) {
+        char c = s.charAt(index);
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not an amount: " + s);
+        }
+        return c - '0';
+    }
+
+    private static final class Entry {
+        final long paise;
+        final String text;
+
+        Entry(long paise, String text) {
+            this.paise = paise;
+            this.text = text;
+        }
+    }
+}
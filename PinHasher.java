@@ -0,0 +1,75 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Salted PBKDF2-HMAC-SHA256 PIN hashes. A stored hash names its own iteration count,
+// "$pbkdf2-sha256$<iterations>$<salt>$<hash>" with Base64 salt and hash, so the cost
+// can be raised later without invalidating existing PINs. Verification compares in
+// constant time.
+public final class PinHasher {
+    public static final int DEFAULT_ITERATIONS = Integer.getInteger("atm.pin.iterations", 100_000);
+
+    private static final String PREFIX = "$pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int iterations;
+
+    public PinHasher() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    public PinHasher(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be positive");
+        }
+        this.iterations = iterations;
+    }
+
+    public String hash(String pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + iterations + '$' + base64.encodeToString(salt) + '$'
+                + base64.encodeToString(derive(pin, salt, iterations));
+    }
+
+    public boolean verify(String pin, String stored) {
+        if (!isHash(stored)) {
+            return false;
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[2]);
+            byte[] actual = derive(pin, base64.decode(parts[1]), Integer.parseInt(parts[0]));
+            return MessageDigest.isEqual(expected, actual);
+        } catch (IllegalArgumentException e) {
+            return false; // corrupt hash never matches
+        }
+    }
+
+    public static boolean isHash(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    private static byte[] derive(String pin, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Logged-in sessions, each named by an unguessable random token. A session expires
+// after idleMillis without use. Using a session only writes its last-active time;
+// the timing wheel fires once per idle period and either expires the session or,
+// if it was used meanwhile, re-arms itself for the time that is left. Creating,
+// using and expiring a session are therefore all O(1).
+public class SessionRegistry implements AutoCloseable {
+    public static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final int TOKEN_BYTES = 16;
+    private static final long TICK_MILLIS = 100;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static final class Session {
+        private final String token;
+        private final String cardNumber;
+        private final String terminalId;
+        private final String address; // null for local terminals; see AtmEngine.login
+        private volatile long lastActive;
+
+        private Session(String token, String cardNumber, String terminalId, String address, long now) {
+            this.token = token;
+            this.cardNumber = cardNumber;
+            this.terminalId = terminalId;
+            this.address = address;
+            this.lastActive = now;
+        }
+
+        public String getToken() { return token; }
+        public String getCardNumber() { return cardNumber; }
+        public String getTerminalId() { return terminalId; }
+        public String getAddress() { return address; }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, "session-expiry");
+    private final long idleMillis;
+
+    public SessionRegistry() {
+        this(Long.getLong("atm.session.idle.millis", DEFAULT_IDLE_MILLIS));
+    }
+
+    public SessionRegistry(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    public Session open(String cardNumber, String terminalId) {
+        return open(cardNumber, terminalId, null);
+    }
+
+    public Session open(String cardNumber, String terminalId, String address) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session session = new Session(token, cardNumber, terminalId, address, System.currentTimeMillis());
+        sessions.put(token, session);
+        wheel.schedule(idleMillis, TimeUnit.MILLISECONDS, () -> checkIdle(session));
+        return session;
+    }
+
+    // The live session for token, marked as just used, or null if it is unknown or expired
+    public Session use(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - session.lastActive >= idleMillis) {
+            sessions.remove(token, session); // the wheel has not got to it yet
+            return null;
+        }
+        session.lastActive = now;
+        return session;
+    }
+
+    // The session that was closed, or null if there was none
+    public Session close(String token) {
+        // its pending timeout finds it gone and does nothing
+        return token == null ? null : sessions.remove(token);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public void close() {
+        wheel.close();
+    }
+
+    private void checkIdle(Session session) {
+        if (sessions.get(session.token) != session) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - session.lastActive;
+        if (idle >= idleMillis) {
+            sessions.remove(session.token, session);
+        } else {
+            wheel.schedule(idleMillis - idle, TimeUnit.MILLISECONDS, () -> checkIdle(session));
+        }
+    }
+}
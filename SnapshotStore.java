@@ -0,0 +1,264 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Directory of binary snapshots of the account map, each tagged with the journal
+// checkpoint it was taken at. Files are written to a temporary name and atomically
+// renamed, so a crash mid-write never hides the previous good snapshot. The store
+// also owns the history spill file; snapshots refer to spilled pages by offset.
+//
+// Layout: [int magic][int version][long checkpoint LSN][long checkpoint offset]
+// then per account [byte 1][UTF card][UTF PIN hash][long balance][long last LSN]
+// [history: TransactionHistory.writeTo][byte n][n recent requests: long key, long
+// fingerprint, long timestamp, long balance after][short n][n longs: the limit
+// windows, see VelocityLimits.export], then [byte 0][long account count][long history
+// spill file size][int CRC32]. Older versions are still read: 4 has no spill file
+// size, 3 also no limit windows and 2 also no recent requests.
+//
+// Pages spilled after a snapshot was written are referenced by nothing once it is
+// restored, since the journal replay rebuilds those rows, so loading a snapshot cuts
+// the spill file back to the size it recorded.
+public class SnapshotStore implements AutoCloseable {
+    private static final int MAGIC = 0x41544D53; // "ATMS"
+    private static final int VERSION = 5;
+    private static final int NO_SPILL_SIZE_VERSION = 4;
+    private static final int NO_VELOCITY_VERSION = 3;
+    private static final int NO_REQUEST_KEYS_VERSION = 2;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    // Receives the accounts of a snapshot once the whole file has passed its checks;
+    // begin() is called first. recentRequests holds IdempotencyCache.FIELDS longs per
+    // request, or is null; velocity is as from VelocityLimits.export, or null.
+    public interface Loader {
+        void begin();
+        void account(String cardNumber, String pinHash, long balance, long lastLsn, TransactionHistory history,
+                     long[] recentRequests, long[] velocity);
+    }
+
+    private final Path directory;
+    private final int retained;
+    private final HistorySpillFile historyPages;
+
+    public SnapshotStore(Path directory) throws IOException {
+        this(directory, 2);
+    }
+
+    public SnapshotStore(Path directory, int retained) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.retained = Math.max(1, retained);
+        this.historyPages = new HistorySpillFile(this.directory.resolve("history.pages"));
+    }
+
+    public HistorySpillFile getHistoryPages() { return historyPages; }
+
+    // Loads the newest intact snapshot and returns its checkpoint, or null if there is none
+    public Journal.Checkpoint loadLatest(Loader loader) throws IOException {
+        for (Path file : listNewestFirst()) {
+            try {
+                return load(file, loader);
+            } catch (IOException e) {
+                System.err.println("Skipping unreadable snapshot " + file + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    public Writer begin(Journal.Checkpoint checkpoint) throws IOException {
+        return new Writer(checkpoint);
+    }
+
+    private Journal.Checkpoint load(Path file, Loader loader) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(
+                     new CheckedInputStream(new BufferedInputStream(raw, BUFFER_BYTES), crc))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version < NO_REQUEST_KEYS_VERSION || version > VERSION) {
+                throw new IOException("Not a version " + NO_REQUEST_KEYS_VERSION + " to " + VERSION + " snapshot");
+            }
+            Journal.Checkpoint checkpoint = new Journal.Checkpoint(in.readLong(), in.readLong());
+
+            // Held back until the checksum passes, so a corrupt file leaves the loader untouched
+            List<Staged> staged = new ArrayList<>();
+            long count = 0;
+            while (in.readByte() == 1) {
+                String cardNumber = in.readUTF();
+                String pinHash = in.readUTF();
+                long balance = in.readLong();
+                long lastLsn = in.readLong();
+                TransactionHistory history = TransactionHistory.readFrom(in, historyPages);
+                long[] recentRequests = null;
+                int requests = version != NO_REQUEST_KEYS_VERSION ? in.readUnsignedByte() : 0;
+                if (requests > 0) {
+                    recentRequests = new long[requests * IdempotencyCache.FIELDS];
+                    for (int i = 0; i < recentRequests.length; i++) {
+                        recentRequests[i] = in.readLong();
+                    }
+                }
+                long[] velocity = null;
+                int windows = version >= NO_SPILL_SIZE_VERSION ? in.readUnsignedShort() : 0;
+                if (windows > 0) {
+                    velocity = new long[windows];
+                    for (int i = 0; i < windows; i++) {
+                        velocity[i] = in.readLong();
+                    }
+                }
+                staged.add(new Staged(cardNumber, pinHash, balance, lastLsn, history, recentRequests, velocity));
+                count++;
+            }
+            if (in.readLong() != count) {
+                throw new IOException("Account count mismatch");
+            }
+            long spillSize = version == VERSION ? in.readLong() : -1;
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Checksum mismatch");
+            }
+            if (spillSize >= 0) {
+                historyPages.truncate(spillSize);
+            }
+            loader.begin();
+            for (Staged account : staged) {
+                loader.account(account.cardNumber, account.pinHash, account.balance, account.lastLsn,
+                        account.history, account.recentRequests, account.velocity);
+            }
+            return checkpoint;
+        }
+    }
+
+    private static final class Staged {
+        final String cardNumber;
+        final String pinHash;
+        final long balance;
+        final long lastLsn;
+        final TransactionHistory history;
+        final long[] recentRequests;
+        final long[] velocity;
+
+        Staged(String cardNumber, String pinHash, long balance, long lastLsn, TransactionHistory history,
+               long[] recentRequests, long[] velocity) {
+            this.cardNumber = cardNumber;
+            this.pinHash = pinHash;
+            this.balance = balance;
+            this.lastLsn = lastLsn;
+            this.history = history;
+            this.recentRequests = recentRequests;
+            this.velocity = velocity;
+        }
+    }
+
+    private List<Path> listNewestFirst() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+                    })
+                    .sorted((a, b) -> b.getFileName().toString().compareTo(a.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        historyPages.close();
+    }
+
+    private void prune() throws IOException {
+        List<Path> files = listNewestFirst();
+        for (int i = retained; i < files.size(); i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    // Streams one snapshot to disk; nothing becomes visible until commit()
+    public class Writer implements AutoCloseable {
+        private final Path target;
+        private final Path temp;
+        private final FileOutputStream file;
+        private final CRC32 crc = new CRC32();
+        private final DataOutputStream out;
+        private long count;
+        private boolean committed;
+
+        private Writer(Journal.Checkpoint checkpoint) throws IOException {
+            String name = String.format("%s%020d%s", PREFIX, checkpoint.getLsn(), SUFFIX);
+            target = directory.resolve(name);
+            temp = directory.resolve(name + ".tmp");
+            file = new FileOutputStream(temp.toFile());
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new CheckedOutputStream(file, crc), BUFFER_BYTES));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(checkpoint.getLsn());
+            out.writeLong(checkpoint.getOffset());
+        }
+
+        // recentRequests as returned by IdempotencyCache, velocity by VelocityLimits.export; either may be null
+        public void account(String cardNumber, String pinHash, long balance, long lastLsn,
+                            TransactionHistory history, int historySize, long[] recentRequests, long[] velocity)
+                throws IOException {
+            out.writeByte(1);
+            out.writeUTF(cardNumber);
+            out.writeUTF(pinHash);
+            out.writeLong(balance);
+            out.writeLong(lastLsn);
+            history.writeTo(out, historySize);
+            if (recentRequests == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(recentRequests.length / IdempotencyCache.FIELDS);
+                for (long value : recentRequests) {
+                    out.writeLong(value);
+                }
+            }
+            if (velocity == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(velocity.length);
+                for (long value : velocity) {
+                    out.writeLong(value);
+                }
+            }
+            count++;
+        }
+
+        // The history pages this snapshot refers to must have been forced to disk by now
+        public void commit() throws IOException {
+            out.writeByte(0);
+            out.writeLong(count);
+            out.writeLong(historyPages.size());
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+            prune();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
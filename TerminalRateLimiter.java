@@ -0,0 +1,59 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Token bucket per terminal, kept in the equivalent GCRA form: each bucket is one
+// long holding the time at which it would be full again, so acquiring a token is a
+// single compare-and-set. Terminal ids hash into a fixed number of buckets; ids that
+// collide share a bucket, which only ever makes the limit stricter, and memory
+// stays fixed however many ids are presented. The engine keeps a second, looser
+// limiter per network address, since many terminals can sit behind one switch.
+public class TerminalRateLimiter {
+    public static final int DEFAULT_BUCKETS = 1 << 16;
+    public static final double DEFAULT_PER_SECOND = 1.0;
+    public static final int DEFAULT_BURST = 5;
+    public static final double DEFAULT_ADDRESS_PER_SECOND = 500.0;
+    public static final int DEFAULT_ADDRESS_BURST = 1_000;
+
+    private final AtomicLongArray fullAt;
+    private final int mask;
+    private volatile long nanosPerToken;
+    private volatile long burstNanos;
+
+    public TerminalRateLimiter() {
+        this(DEFAULT_BUCKETS, DEFAULT_PER_SECOND, DEFAULT_BURST);
+    }
+
+    public TerminalRateLimiter(int buckets, double perSecond, int burst) {
+        int size = Integer.highestOneBit(Math.max(1, buckets - 1) << 1);
+        fullAt = new AtomicLongArray(size);
+        mask = size - 1;
+        setRate(perSecond, burst);
+    }
+
+    // Double.POSITIVE_INFINITY turns the limit off
+    public void setRate(double perSecond, int burst) {
+        nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        burstNanos = nanosPerToken * burst;
+    }
+
+    public boolean tryAcquire(String terminalId, long nowNanos) {
+        int bucket = bucket(terminalId);
+        while (true) {
+            long current = fullAt.get(bucket);
+            // An idle bucket is full; start from now rather than from a time in the past
+            long base = current == 0 || current - nowNanos < 0 ? nowNanos : current;
+            long next = base + nanosPerToken;
+            if (next - nowNanos > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(bucket, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    private int bucket(String terminalId) {
+        int h = terminalId.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
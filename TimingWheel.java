@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Hierarchical timing wheel: LEVELS wheels of 64 slots each. Level 0 slots are one
+// tick wide and every level up is 64 times coarser. A timeout is linked into the
+// lowest level whose range covers its deadline and moves down a level each time the
+// wheel below it wraps, so scheduling, cancelling and firing a timeout are all O(1)
+// however many are pending. One daemon thread turns the wheel and runs due tasks;
+// tasks must be short and must not block.
+public class TimingWheel implements AutoCloseable {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    // A scheduled task; a node in one slot's doubly linked list
+    public static final class Timeout {
+        private final Runnable task;
+        private long deadline; // in ticks
+        private Timeout prev;
+        private Timeout next;
+        private Timeout[] bucket; // wheel level and slot it is linked into, null once fired or cancelled
+        private int slot;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS];
+    private final Thread ticker;
+    private long currentTick;
+    private volatile boolean running = true;
+
+    public TimingWheel(long tick, TimeUnit unit, String threadName) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        ticker = new Thread(this::run, threadName);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public synchronized Timeout schedule(long delay, TimeUnit unit, Runnable task) {
+        Timeout timeout = new Timeout(task);
+        long ticks = Math.max(1, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+        timeout.deadline = currentTick + Math.min(ticks, MAX_TICKS);
+        link(timeout);
+        return timeout;
+    }
+
+    // Returns false if the timeout already fired or was cancelled
+    public synchronized boolean cancel(Timeout timeout) {
+        if (timeout.bucket == null) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        ticker.interrupt();
+    }
+
+    private void run() {
+        List<Runnable> due = new ArrayList<>();
+        while (running) {
+            long target = (System.nanoTime() - startNanos) / tickNanos;
+            synchronized (this) {
+                while (currentTick < target) {
+                    advance(due);
+                }
+            }
+            for (Runnable task : due) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e);
+                }
+            }
+            due.clear();
+            try {
+                TimeUnit.NANOSECONDS.sleep(tickNanos);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Moves one tick forward, collecting the tasks that are now due
+    private void advance(List<Runnable> due) {
+        currentTick++;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            // The level below wrapped: spread this level's current slot over the lower levels
+            Timeout[] wheel = wheels[level];
+            int slot = (int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+            Timeout t = wheel[slot];
+            wheel[slot] = null;
+            while (t != null) {
+                Timeout next = t.next;
+                t.prev = t.next = null;
+                link(t);
+                t = next;
+            }
+        }
+        Timeout[] wheel = wheels[0];
+        int slot = (int) currentTick & (SLOTS - 1);
+        Timeout t = wheel[slot];
+        wheel[slot] = null;
+        while (t != null) {
+            Timeout next = t.next;
+            t.prev = t.next = null;
+            t.bucket = null;
+            due.add(t.task);
+            t = next;
+        }
+    }
+
+    private void link(Timeout timeout) {
+        long remaining = Math.max(0, timeout.deadline - currentTick);
+        int level = 0;
+        while (level < LEVELS - 1 && remaining >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = (int) (timeout.deadline >>> (SLOT_BITS * level)) & (SLOTS - 1);
+        Timeout[] wheel = wheels[level];
+        timeout.bucket = wheel;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = wheel[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        wheel[slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            timeout.bucket[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = timeout.next = null;
+        timeout.bucket = null;
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.Date;
+
+// Transaction class exposing one history row; amounts are in paise
+public class Transaction {
+    private final long timestamp;
+    private final TransactionType type;
+    private final long counterparty;
+    private final long amount;
+    private final long balance;
+
+    public Transaction(long timestamp, TransactionType type, long counterparty, long amount, long balance) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.counterparty = counterparty;
+        this.amount = amount;
+        this.balance = balance;
+    }
+
+    public Date getDate() { return new Date(timestamp); }
+    public long getTimestamp() { return timestamp; }
+    public String getType() { return type.describe(counterparty); }
+    public TransactionType getTransactionType() { return type; }
+    public long getCounterparty() { return counterparty; }
+    public long getAmount() { return amount; }
+    public long getBalance() { return balance; }
+}
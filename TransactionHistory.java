@@ -0,0 +1,258 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+// Append-only transaction history of one account in a compact primitive layout.
+// Each row is four longs (type code and timestamp, packed counterparty card, amount,
+// balance after) stored in pages of PAGE_ROWS rows. The newest pages stay in memory;
+// older full pages are written to a HistorySpillFile and read back only on demand.
+//
+// There is one writer at a time (the engine holds the account's lock stripe), and
+// readers on any thread see every row below size() without locking: rows are never
+// modified once written and size is published after the row. That also makes the
+// range queries below cheap: a View is just a fixed [from, to) window over the rows,
+// so nothing is copied and later appends never show up in it.
+public class TransactionHistory {
+    public static final int PAGE_ROWS = 256;
+    public static final int ROW_LONGS = 4;
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int FIRST_PAGE_ROWS = 4;
+    private static final int RESIDENT_PAGES = 4;
+    private static final int TYPE_SHIFT = 56;
+    private static final long TIMESTAMP_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private static final class Slot {
+        volatile long[] rows; // null once the page has been spilled
+        volatile long spillOffset = -1;
+    }
+
+    private static final class Loaded {
+        final long offset;
+        final long[] rows;
+
+        Loaded(long offset, long[] rows) {
+            this.offset = offset;
+            this.rows = rows;
+        }
+    }
+
+    private final HistorySpillFile spill; // null keeps every page in memory
+    private volatile Slot[] slots = new Slot[1];
+    private volatile int size;
+    private volatile Loaded lastLoaded;
+    private int oldestResident;
+
+    public TransactionHistory(HistorySpillFile spill) {
+        this.spill = spill;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void append(long timestamp, TransactionType type, long counterparty, long amount, long balance) {
+        int index = size;
+        int page = index >>> PAGE_SHIFT;
+        Slot[] current = slots;
+        if (page == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        Slot slot = current[page];
+        if (slot == null) {
+            slot = new Slot();
+            // Most accounts never fill a page, so the first one starts small
+            slot.rows = new long[(page == 0 ? FIRST_PAGE_ROWS : PAGE_ROWS) * ROW_LONGS];
+            current[page] = slot;
+            slots = current;
+            spillOldPages(page);
+        }
+
+        long[] rows = slot.rows;
+        int base = (index & (PAGE_ROWS - 1)) * ROW_LONGS;
+        if (base == rows.length) {
+            rows = Arrays.copyOf(rows, Math.min(rows.length * 2, PAGE_ROWS * ROW_LONGS));
+            slot.rows = rows;
+        }
+        rows[base] = ((long) type.code() << TYPE_SHIFT) | timestamp;
+        rows[base + 1] = counterparty;
+        rows[base + 2] = amount;
+        rows[base + 3] = balance;
+        size = index + 1;
+    }
+
+    public Transaction get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        long[] rows = pageRows(index >>> PAGE_SHIFT);
+        int base = (index & (PAGE_ROWS - 1)) * ROW_LONGS;
+        long header = rows[base];
+        return new Transaction(header & TIMESTAMP_MASK, TransactionType.fromCode((int) (header >>> TYPE_SHIFT)),
+                rows[base + 1], rows[base + 2], rows[base + 3]);
+    }
+
+    // False if reading the row would have to go to the spill file
+    public boolean isInMemory(int index) {
+        return slots[index >>> PAGE_SHIFT].rows != null;
+    }
+
+    // Every row appended so far
+    public View snapshot() {
+        return new View(this, 0, size);
+    }
+
+    // The newest count rows, oldest first
+    public View last(int count) {
+        int end = size;
+        return new View(this, Math.max(0, end - Math.max(0, count)), end);
+    }
+
+    // Rows at or after timestamp; relies on rows being appended in time order
+    public View since(long timestamp) {
+        int end = size;
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return new View(this, low, end);
+    }
+
+    // Page index of pageSize rows counted back from the newest row (page 0 is the newest)
+    public View page(int index, int pageSize) {
+        if (index < 0 || pageSize <= 0) {
+            throw new IllegalArgumentException("page " + index + ", size " + pageSize);
+        }
+        int end = size;
+        long to = end - (long) index * pageSize;
+        long from = to - pageSize;
+        return new View(this, (int) Math.max(0, Math.min(end, from)), (int) Math.max(0, to));
+    }
+
+    // Serializes the first size rows; spilled pages are written as their file offset
+    public void writeTo(DataOutput out, int size) throws IOException {
+        out.writeInt(size);
+        Slot[] current = slots;
+        int pages = (size + PAGE_ROWS - 1) >>> PAGE_SHIFT;
+        for (int page = 0; page < pages; page++) {
+            Slot slot = current[page];
+            long[] rows = slot.rows;
+            if (rows == null) {
+                out.writeByte(0);
+                out.writeLong(slot.spillOffset);
+            } else {
+                int count = Math.min(PAGE_ROWS, size - page * PAGE_ROWS) * ROW_LONGS;
+                out.writeByte(1);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(rows[i]);
+                }
+            }
+        }
+    }
+
+    public static TransactionHistory readFrom(DataInput in, HistorySpillFile spill) throws IOException {
+        TransactionHistory history = new TransactionHistory(spill);
+        int size = in.readInt();
+        int pages = (size + PAGE_ROWS - 1) >>> PAGE_SHIFT;
+        Slot[] slots = new Slot[Math.max(1, Integer.highestOneBit(Math.max(1, pages - 1) << 1))];
+        int oldestResident = pages;
+        for (int page = 0; page < pages; page++) {
+            Slot slot = new Slot();
+            if (in.readByte() == 0) {
+                if (spill == null) {
+                    throw new IOException("Snapshot references spilled history but no spill file is open");
+                }
+                slot.spillOffset = in.readLong();
+                slot.rows = null;
+            } else {
+                int count = Math.min(PAGE_ROWS, size - page * PAGE_ROWS) * ROW_LONGS;
+                long[] rows = new long[count];
+                for (int i = 0; i < count; i++) {
+                    rows[i] = in.readLong();
+                }
+                slot.rows = rows;
+                oldestResident = Math.min(oldestResident, page);
+            }
+            slots[page] = slot;
+        }
+        history.slots = slots;
+        history.oldestResident = Math.min(oldestResident, Math.max(0, pages - 1));
+        history.size = size;
+        return history;
+    }
+
+    // Called by the writer when it starts page newestPage
+    private void spillOldPages(int newestPage) {
+        if (spill == null) {
+            return;
+        }
+        Slot[] current = slots;
+        while (newestPage - oldestResident + 1 > RESIDENT_PAGES) {
+            Slot old = current[oldestResident++];
+            long[] rows = old.rows;
+            if (rows != null) {
+                old.spillOffset = spill.write(rows);
+                old.rows = null;
+            }
+        }
+    }
+
+    private long timestampAt(int index) {
+        long[] rows = pageRows(index >>> PAGE_SHIFT);
+        return rows[(index & (PAGE_ROWS - 1)) * ROW_LONGS] & TIMESTAMP_MASK;
+    }
+
+    private long[] pageRows(int page) {
+        Slot slot = slots[page];
+        long[] rows = slot.rows;
+        if (rows != null) {
+            return rows;
+        }
+        long offset = slot.spillOffset;
+        Loaded loaded = lastLoaded;
+        if (loaded != null && loaded.offset == offset) {
+            return loaded.rows;
+        }
+        rows = spill.read(offset);
+        lastLoaded = new Loaded(offset, rows);
+        return rows;
+    }
+
+    // Immutable window of rows; each element is materialized only when it is read
+    public static final class View extends AbstractList<Transaction> implements RandomAccess {
+        private final TransactionHistory history;
+        private final int from;
+        private final int to;
+
+        private View(TransactionHistory history, int from, int to) {
+            this.history = history;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Transaction get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + (to - from));
+            }
+            return history.get(from + index);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        // Position of the first row of this view within the whole history
+        public int getFromIndex() { return from; }
+    }
+}
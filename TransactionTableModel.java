@@ -0,0 +1,161 @@
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Table model for the history screen, newest transaction first. Cells are formatted
+// only when JTable asks for them, which it does for visible rows alone. New
+// transactions are picked up incrementally by refresh(), and rows whose page has
+// been spilled to disk are loaded on a background thread while a placeholder shows.
+class TransactionTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {"Date", "Type", "Amount", "Balance"};
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm").withZone(ZoneId.systemDefault());
+    private static final String LOADING = "Loading…";
+    private static final int CACHED_PAGES = 8;
+
+    private TransactionHistory history;
+    private int rowCount;
+
+    // Last row materialized; JTable reads all columns of a row in a row
+    private int cachedIndex = -1;
+    private Transaction cachedRow;
+
+    // Spilled pages already fetched in the background, least recently used first
+    private final Map<Integer, Transaction[]> loadedPages =
+            new LinkedHashMap<Integer, Transaction[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Transaction[]> eldest) {
+                    return size() > CACHED_PAGES;
+                }
+            };
+    private final Set<Integer> pendingPages = new HashSet<>();
+
+    // Shows history, or just appends what is new if it is the history already shown
+    public void setHistory(TransactionHistory history) {
+        if (history != this.history) {
+            this.history = history;
+            rowCount = history == null ? 0 : history.size();
+            cachedIndex = -1;
+            cachedRow = null;
+            loadedPages.clear();
+            pendingPages.clear();
+            fireTableDataChanged();
+        } else {
+            refresh();
+        }
+    }
+
+    public void refresh() {
+        if (history == null) {
+            return;
+        }
+        int size = history.size();
+        if (size > rowCount) {
+            int added = size - rowCount;
+            rowCount = size;
+            cachedIndex = -1;
+            fireTableRowsInserted(0, added - 1);
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        Transaction t = transactionAt(rowCount - 1 - row);
+        if (t == null) {
+            return column == 0 ? LOADING : "";
+        }
+        switch (column) {
+            case 0:
+                return DATE_FORMAT.format(Instant.ofEpochMilli(t.getTimestamp()));
+            case 1:
+                return t.getType();
+            case 2:
+                return Money.format(Math.abs(t.getAmount()));
+            default:
+                return Money.format(t.getBalance());
+        }
+    }
+
+    private Transaction transactionAt(int index) {
+        if (index == cachedIndex) {
+            return cachedRow;
+        }
+        Transaction t;
+        if (history.isInMemory(index)) {
+            t = history.get(index);
+        } else {
+            int page = index / TransactionHistory.PAGE_ROWS;
+            Transaction[] rows = loadedPages.get(page);
+            if (rows == null) {
+                loadInBackground(history, page);
+                return null;
+            }
+            t = rows[index % TransactionHistory.PAGE_ROWS];
+        }
+        cachedIndex = index;
+        cachedRow = t;
+        return t;
+    }
+
+    private void loadInBackground(TransactionHistory source, int page) {
+        if (!pendingPages.add(page)) {
+            return;
+        }
+        new SwingWorker<Transaction[], Void>() {
+            @Override
+            protected Transaction[] doInBackground() {
+                Transaction[] rows = new Transaction[TransactionHistory.PAGE_ROWS];
+                int first = page * TransactionHistory.PAGE_ROWS;
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = source.get(first + i);
+                }
+                return rows;
+            }
+
+            @Override
+            protected void done() {
+                if (source != history) {
+                    return; // another account is shown by now
+                }
+                pendingPages.remove(page);
+                try {
+                    loadedPages.put(page, get());
+                } catch (Exception e) {
+                    System.err.println("Could not load history page " + page + ": " + e.getMessage());
+                    return;
+                }
+                int first = page * TransactionHistory.PAGE_ROWS;
+                int last = first + TransactionHistory.PAGE_ROWS - 1;
+                fireTableRowsUpdated(rowCount - 1 - last, rowCount - 1 - first);
+            }
+        }.execute();
+    }
+}
@@ -0,0 +1,29 @@
+// Kinds of history entries, stored as a one-byte code instead of a label String
+public enum TransactionType {
+    OPENING("Account Opening"),
+    WITHDRAWAL("Withdrawal"),
+    DEPOSIT("Deposit"),
+    TRANSFER_OUT("Transfer Out to "),
+    TRANSFER_IN("Transfer In from ");
+
+    private static final TransactionType[] BY_CODE = values();
+
+    private final String label;
+
+    TransactionType(String label) {
+        this.label = label;
+    }
+
+    public byte code() {
+        return (byte) ordinal();
+    }
+
+    public static TransactionType fromCode(int code) {
+        return BY_CODE[code];
+    }
+
+    // Display text; transfers name the other card number
+    public String describe(long counterparty) {
+        return counterparty == 0 ? label : label + CardNumbers.unpack(counterparty);
+    }
+}
@@ -0,0 +1,289 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Per-card limits on money leaving an account: amount and number of debits in the
+// last 24 hours and the last hour, and per counterparty in the last 24 hours.
+// Withdrawals and transfers both count towards the card's limits, and transfers also
+// towards the limit for their recipient. Each window is a ring of time buckets with running totals, so checking
+// and recording are a constant amount of work and never rescan history; a window is
+// exact to within one bucket (30 minutes for the day, 5 for the hour). A card's
+// windows hang off its Account, are created on its first debit and are only touched
+// under the card's stripe lock, so they need no locking of their own. Snapshots carry
+// them (see export), so a restart does not forget the debits of the last day.
+//
+// Only the last few counterparties of a card are tracked; a new one replaces the one
+// paid longest ago, whose total is then forgotten. The card's own 24 hour limit still
+// caps what cycling through many recipients can move.
+public class VelocityLimits {
+    private static final int DAY_BUCKETS = 48;
+    private static final long DAY_BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final int HOUR_BUCKETS = 12;
+    private static final long HOUR_BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int COUNTERPARTY_BUCKETS = 12;
+    private static final long COUNTERPARTY_BUCKET_MILLIS = TimeUnit.HOURS.toMillis(2);
+    private static final int COUNTERPARTIES = 4;
+
+    public static final class Limits {
+        public static final Limits DEFAULT = new Limits(
+                Long.getLong("atm.limit.daily.amount", Money.ofRupees(100_000)),
+                Integer.getInteger("atm.limit.daily.count", 25),
+                Long.getLong("atm.limit.hourly.amount", Money.ofRupees(50_000)),
+                Integer.getInteger("atm.limit.hourly.count", 10),
+                Long.getLong("atm.limit.counterparty.amount", Money.ofRupees(50_000)),
+                Integer.getInteger("atm.limit.counterparty.count", 5));
+        public static final Limits UNLIMITED = new Limits(Long.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE,
+                Integer.MAX_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+
+        final long dailyAmount;
+        final int dailyCount;
+        final long hourlyAmount;
+        final int hourlyCount;
+        final long counterpartyAmount;
+        final int counterpartyCount;
+
+        // Amounts in paise; counts are debits per window
+        public Limits(long dailyAmount, int dailyCount, long hourlyAmount, int hourlyCount,
+                      long counterpartyAmount, int counterpartyCount) {
+            this.dailyAmount = dailyAmount;
+            this.dailyCount = dailyCount;
+            this.hourlyAmount = hourlyAmount;
+            this.hourlyCount = hourlyCount;
+            this.counterpartyAmount = counterpartyAmount;
+            this.counterpartyCount = counterpartyCount;
+        }
+    }
+
+    // Rolling sum and count over a ring of fixed-width time buckets
+    static final class Window {
+        private final long bucketMillis;
+        private final long[] amounts;
+        private final int[] counts;
+        private long newest; // bucket number (millis / bucketMillis) of the newest bucket
+        private long amount;
+        private int count;
+
+        Window(int buckets, long bucketMillis) {
+            this.bucketMillis = bucketMillis;
+            this.amounts = new long[buckets];
+            this.counts = new int[buckets];
+        }
+
+        long amount(long nowMillis) {
+            advance(nowMillis);
+            return amount;
+        }
+
+        int count(long nowMillis) {
+            advance(nowMillis);
+            return count;
+        }
+
+        void add(long timestamp, long value) {
+            advance(timestamp);
+            long bucket = Math.floorDiv(timestamp, bucketMillis);
+            if (bucket <= newest - amounts.length) {
+                return; // older than the window, as when replaying an old journal
+            }
+            int i = (int) Math.floorMod(bucket, (long) amounts.length);
+            amounts[i] += value;
+            counts[i]++;
+            amount += value;
+            count++;
+        }
+
+        boolean isEmpty(long nowMillis) {
+            return count(nowMillis) == 0;
+        }
+
+        // Writes [newest bucket][n] and (bucket, amount, count) for the n non-empty buckets
+        int export(long[] out, int at) {
+            int start = at;
+            out[at++] = newest;
+            at++;
+            for (long b = newest - amounts.length + 1; b <= newest; b++) {
+                int i = (int) Math.floorMod(b, (long) amounts.length);
+                if (counts[i] != 0) {
+                    out[at++] = b;
+                    out[at++] = amounts[i];
+                    out[at++] = counts[i];
+                }
+            }
+            out[start + 1] = (at - start - 2) / 3;
+            return at;
+        }
+
+        int restore(long[] in, int at) {
+            newest = in[at++];
+            long buckets = in[at++];
+            for (long n = 0; n < buckets; n++) {
+                int i = (int) Math.floorMod(in[at++], (long) amounts.length);
+                amounts[i] = in[at++];
+                counts[i] = (int) in[at++];
+                amount += amounts[i];
+                count += counts[i];
+            }
+            return at;
+        }
+
+        // Empties the buckets that have slid out of the window since the newest one
+        private void advance(long nowMillis) {
+            long bucket = Math.floorDiv(nowMillis, bucketMillis);
+            if (bucket <= newest) {
+                return;
+            }
+            long expired = Math.min(bucket - newest, amounts.length);
+            for (long b = bucket - expired + 1; b <= bucket; b++) {
+                int i = (int) Math.floorMod(b, (long) amounts.length);
+                amount -= amounts[i];
+                count -= counts[i];
+                amounts[i] = 0;
+                counts[i] = 0;
+            }
+            newest = bucket;
+        }
+    }
+
+    // The windows of one card
+    static final class CardWindows {
+        final Window day = new Window(DAY_BUCKETS, DAY_BUCKET_MILLIS);
+        final Window hour = new Window(HOUR_BUCKETS, HOUR_BUCKET_MILLIS);
+        final long[] counterparties = new long[COUNTERPARTIES]; // packed card numbers, 0 = free
+        final long[] lastPaid = new long[COUNTERPARTIES];
+        final Window[] paid = new Window[COUNTERPARTIES];
+
+        // The counterparty's window, or null if it is not tracked
+        Window find(long counterparty) {
+            for (int i = 0; i < COUNTERPARTIES; i++) {
+                if (counterparties[i] == counterparty) {
+                    return paid[i];
+                }
+            }
+            return null;
+        }
+
+        Window claim(long counterparty, long nowMillis) {
+            int slot = 0;
+            for (int i = 0; i < COUNTERPARTIES; i++) {
+                if (counterparties[i] == counterparty) {
+                    slot = i;
+                    break;
+                }
+                if (lastPaid[i] < lastPaid[slot]) {
+                    slot = i;
+                }
+            }
+            if (counterparties[slot] != counterparty) {
+                counterparties[slot] = counterparty;
+                paid[slot] = new Window(COUNTERPARTY_BUCKETS, COUNTERPARTY_BUCKET_MILLIS);
+            }
+            lastPaid[slot] = Math.max(lastPaid[slot], nowMillis);
+            return paid[slot];
+        }
+    }
+
+    // The most longs export can return: both card windows, then the counterparty count
+    // and each counterparty's card, last payment and window
+    private static final int MAX_EXPORT = 2 + 3 * DAY_BUCKETS + 2 + 3 * HOUR_BUCKETS + 1
+            + COUNTERPARTIES * (4 + 3 * COUNTERPARTY_BUCKETS);
+
+    private volatile Limits limits = Limits.DEFAULT;
+
+    public Limits getLimits() {
+        return limits;
+    }
+
+    public void setLimits(Limits limits) {
+        this.limits = limits;
+    }
+
+    // The failure to report if debiting amount now would break a limit, else null.
+    // counterparty is the recipient's packed card number, or 0 for a cash withdrawal.
+    public AtmResult check(Account account, long counterparty, long amount, long nowMillis) {
+        CardWindows windows = windows(account);
+        Limits l = limits;
+        if (windows.day.count(nowMillis) >= l.dailyCount || windows.day.amount(nowMillis) > l.dailyAmount - amount) {
+            return exceeded("This would exceed your daily withdrawal and transfer limit.");
+        }
+        if (windows.hour.count(nowMillis) >= l.hourlyCount || windows.hour.amount(nowMillis) > l.hourlyAmount - amount) {
+            return exceeded("This would exceed your hourly withdrawal and transfer limit.");
+        }
+        if (counterparty != 0) {
+            Window paid = windows.find(counterparty);
+            int paidCount = paid == null ? 0 : paid.count(nowMillis);
+            long paidAmount = paid == null ? 0 : paid.amount(nowMillis);
+            if (paidCount >= l.counterpartyCount || paidAmount > l.counterpartyAmount - amount) {
+                return exceeded("This transfer would exceed the daily limit for this recipient.");
+            }
+        }
+        return null;
+    }
+
+    // Counts a debit made at timestamp; also used to rebuild the windows on recovery
+    public void record(Account account, long counterparty, long amount, long timestamp) {
+        CardWindows windows = windows(account);
+        windows.day.add(timestamp, amount);
+        windows.hour.add(timestamp, amount);
+        if (counterparty != 0) {
+            windows.claim(counterparty, timestamp).add(timestamp, amount);
+        }
+    }
+
+    // The card's windows as longs, for a snapshot, or null if no debit is within any of
+    // them. Called under the card's stripe lock, like check and record.
+    public long[] export(Account account, long nowMillis) {
+        CardWindows windows = account.getVelocity();
+        if (windows == null) {
+            return null;
+        }
+        boolean empty = windows.day.isEmpty(nowMillis) && windows.hour.isEmpty(nowMillis);
+        int tracked = 0;
+        for (int i = 0; i < COUNTERPARTIES; i++) {
+            if (windows.counterparties[i] != 0 && !windows.paid[i].isEmpty(nowMillis)) {
+                tracked++;
+            }
+        }
+        if (empty && tracked == 0) {
+            return null;
+        }
+        long[] out = new long[MAX_EXPORT];
+        int at = windows.day.export(out, 0);
+        at = windows.hour.export(out, at);
+        out[at++] = tracked;
+        for (int i = 0; i < COUNTERPARTIES; i++) {
+            if (windows.counterparties[i] != 0 && !windows.paid[i].isEmpty(nowMillis)) {
+                out[at++] = windows.counterparties[i];
+                out[at++] = windows.lastPaid[i];
+                at = windows.paid[i].export(out, at);
+            }
+        }
+        return Arrays.copyOf(out, at);
+    }
+
+    // Replaces the card's windows with ones exported into a snapshot
+    public void restore(Account account, long[] state) {
+        CardWindows windows = new CardWindows();
+        int at = windows.day.restore(state, 0);
+        at = windows.hour.restore(state, at);
+        long tracked = state[at++];
+        for (int i = 0; i < tracked; i++) {
+            windows.counterparties[i] = state[at++];
+            windows.lastPaid[i] = state[at++];
+            windows.paid[i] = new Window(COUNTERPARTY_BUCKETS, COUNTERPARTY_BUCKET_MILLIS);
+            at = windows.paid[i].restore(state, at);
+        }
+        account.setVelocity(windows);
+    }
+
+    private static CardWindows windows(Account account) {
+        CardWindows windows = account.getVelocity();
+        if (windows == null) {
+            windows = new CardWindows();
+            account.setVelocity(windows);
+        }
+        return windows;
+    }
+
+    private static AtmResult exceeded(String message) {
+        return AtmResult.failure(AtmResult.Status.LIMIT_EXCEEDED, message);
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Compares the heap-based InMemoryAccountStore with MappedAccountStore: build time,
+// GC time while building and for one full collection afterwards, and live heap. The
+// cost of random lookups and balance updates is in jmh/ (AccountStoreAccessBenchmark).
+// Usage:
+// java AccountStoreBenchmark [memory|mapped|both] [accounts...] (default both 10000000 50000000).
+// Run one path per JVM for clean GC numbers; 50M accounts on the heap needs about -Xmx32g.
+public class AccountStoreBenchmark {
+    private static final String PIN_HASH = new PinHasher(1).hash("0000");
+
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : "both";
+        long[] sizes = args.length <= 1 ? new long[]{10_000_000, 50_000_000} : new long[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            sizes[i - 1] = Long.parseLong(args[i]);
+        }
+        for (long size : sizes) {
+            if (!path.equals("mapped")) {
+                try (AccountStore store = new InMemoryAccountStore()) {
+                    run("InMemoryAccountStore", store, size);
+                }
+            }
+            if (!path.equals("memory")) {
+                Path file = Files.createTempFile("atm-accounts", ".store");
+                try (AccountStore store = new MappedAccountStore(file, size)) {
+                    run("MappedAccountStore", store, size);
+                } finally {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static void run(String name, AccountStore store, long accounts) {
+        long gcBefore = gcMillis();
+        long start = System.nanoTime();
+        for (long i = 0; i < accounts; i++) {
+            store.insert(CardNumbers.pack(card(i)), pinHash(i), 1_000_000, 0);
+        }
+        report(name, accounts, start, gcBefore);
+    }
+
+    private static String card(long i) {
+        return Long.toString(1_000_000_000L + i);
+    }
+
+    // Distinct per account, as real salted hashes are, and of realistic length
+    private static String pinHash(long i) {
+        return PIN_HASH.substring(0, PIN_HASH.length() - 10) + (1_000_000_000L + i);
+    }
+
+    private static void report(String name, long accounts, long startNanos, long gcBefore) {
+        double build = (System.nanoTime() - startNanos) / 1e9;
+        long gcDuringBuild = gcMillis() - gcBefore;
+        long fullGcStart = System.nanoTime();
+        System.gc();
+        double fullGc = (System.nanoTime() - fullGcStart) / 1e6;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.out.printf("%-20s %,14d accounts  build %7.2f s  GC during build %,8d ms  full GC %,8.0f ms  heap %,8d MB%n",
+                name, accounts, build, gcDuringBuild, fullGc, memory.getHeapMemoryUsage().getUsed() >> 20);
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+}
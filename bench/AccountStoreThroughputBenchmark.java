@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Engine throughput on each account store backend, without a journal so only the
+// store is measured: a fixed mix of balance checks, deposits, withdrawals and
+// transfers from several threads. Usage: java AccountStoreThroughputBenchmark [spec...]
+// where a spec is as for AccountStore.open (default: memory, a temporary mapped file
+// and, if H2 is on the class path, an in-memory H2 database). For another JDBC backend
+// put its driver on the class path and pass its URL.
+public class AccountStoreThroughputBenchmark {
+    private static final int ACCOUNTS = 100_000;
+    private static final int THREADS = 4;
+    private static final int OPS_PER_THREAD = 250_000;
+    private static final PinHasher PINS = new PinHasher(1); // PIN hashing is not what is measured here
+
+    public static void main(String[] args) throws Exception {
+        List<String> specs = new ArrayList<>(List.of(args));
+        Path temp = null;
+        if (specs.isEmpty()) {
+            temp = Files.createTempFile("atm-accounts", ".store");
+            Files.delete(temp);
+            specs.add("memory");
+            specs.add("mapped:" + temp);
+            if (hasDriver("org.h2.Driver")) {
+                specs.add("jdbc:h2:mem:atm-bench");
+            } else {
+                System.err.println("H2 is not on the class path; skipping the JDBC store");
+            }
+        }
+        try {
+            System.out.printf("%-56s %12s%n", "store", "ops/s");
+            for (String spec : specs) {
+                System.out.printf("%-56s %12.0f%n", spec, run(spec));
+            }
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static double run(String spec) throws IOException, InterruptedException {
+        try (AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, PINS, AccountStore.open(spec))) {
+            engine.getVelocityLimits().setLimits(VelocityLimits.Limits.UNLIMITED);
+            for (int i = 0; i < ACCOUNTS; i++) {
+                engine.openAccount(card(i), "0000", Money.ofRupees(10_000));
+            }
+            mix(engine, OPS_PER_THREAD / 10); // warmup
+            long start = System.nanoTime();
+            mix(engine, OPS_PER_THREAD);
+            return (double) THREADS * OPS_PER_THREAD / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    private static void mix(AtmEngine engine, int opsPerThread) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            Random random = new Random(42 + t);
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < opsPerThread; i++) {
+                    String card = card(random.nextInt(ACCOUNTS));
+                    int op = random.nextInt(100);
+                    if (op < 50) {
+                        engine.balance(card);
+                    } else if (op < 75) {
+                        engine.deposit(card, 100);
+                    } else if (op < 90) {
+                        engine.withdraw(card, 100);
+                    } else {
+                        engine.transfer(card, card(random.nextInt(ACCOUNTS)), 100);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static boolean hasDriver(String className) {
+        try {
+            Class.forName(className);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static String card(int i) {
+        return Integer.toString(10_000_000 + i);
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.Random;
+
+// How evenly a terminal's cassettes empty: withdraws from one full terminal until an
+// amount cannot be made, and prints how much was dispensed and the notes left. Amounts
+// are 70% quick amounts (₹500, ₹1,000, ₹2,000, ₹5,000) and 30% custom multiples of
+// ₹100 up to ₹20,000. Dispense timings are in jmh/ (DispenseBenchmark and
+// FleetReserveBenchmark). Usage: java CassetteDrain
+public class CassetteDrain {
+    private static final long SEED = 42;
+    private static final long[] QUICK_AMOUNTS = {Money.ofRupees(500), Money.ofRupees(1_000), Money.ofRupees(2_000),
+            Money.ofRupees(5_000)};
+
+    public static void main(String[] args) {
+        long[] amounts = amounts(new Random(SEED));
+        CashCassettes cassettes = CashCassettes.fullRupeeLoad();
+        long start = cassettes.getTotal();
+        int withdrawals = 0;
+        while (cassettes.reserve(amounts[withdrawals & 4095]) != null) {
+            withdrawals++;
+        }
+        long[] denominations = cassettes.getSolver().getDenominations();
+        StringBuilder left = new StringBuilder();
+        for (int d = 0; d < denominations.length; d++) {
+            left.append(String.format(" %s x %d", Money.format(denominations[d]), cassettes.getCount(d)));
+        }
+        System.out.printf("drain: %d withdrawals, %s of %s dispensed before the first refusal; left:%s%n",
+                withdrawals, Money.format(start - cassettes.getTotal()), Money.format(start), left);
+    }
+
+    private static long[] amounts(Random random) {
+        long[] amounts = new long[4096];
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = random.nextInt(10) < 7 ? QUICK_AMOUNTS[random.nextInt(QUICK_AMOUNTS.length)]
+                    : Money.ofRupees(100 * (1 + random.nextInt(200)));
+        }
+        return amounts;
+    }
+}
@@ -0,0 +1,118 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Check of JdbcAccountCache against a real database: inserts, balance and PIN updates,
+// clear, more threads than pooled connections, and failed calls returning their
+// connection to the pool. Also checks that starting an engine on the database leaves
+// tables other than the cache's alone. Needs a JDBC driver on the class path; the
+// default URL is an in-memory H2 database. Exits with status 1 on any mismatch.
+// Usage: java -cp out:h2.jar JdbcAccountCacheCheck [jdbc url]
+public class JdbcAccountCacheCheck {
+    private static final int POOL_SIZE = 2;
+    private static final int THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 500;
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        String url = args.length > 0 ? args[0] : "jdbc:h2:mem:atm-check;DB_CLOSE_DELAY=-1";
+        long card = CardNumbers.pack("1111");
+        try (JdbcAccountCache cache = new JdbcAccountCache(url, POOL_SIZE)) {
+            cache.clear();
+            check("insert", cache.insert(card, "hash-1", 1_000, 1));
+            check("insert of an existing card refused", !cache.insert(card, "hash-2", 5, 2));
+            check("contains", cache.contains(card) && !cache.contains(CardNumbers.pack("2222")));
+            check("balance", cache.getBalance(card) == 1_000);
+            check("unknown card", cache.getBalance(CardNumbers.pack("2222")) == AccountStore.NO_ACCOUNT
+                    && cache.getPinHash(CardNumbers.pack("2222")) == null);
+
+            cache.setBalance(card, 2_500, 3);
+            check("balance update", cache.getBalance(card) == 2_500 && cache.getLastLsn(card) == 3);
+            cache.setPinHash(card, "hash-3", 4);
+            check("PIN update", cache.getPinHash(card).equals("hash-3") && cache.getLastLsn(card) == 4
+                    && cache.getBalance(card) == 2_500);
+
+            // Each failure must hand its connection back, or the pool runs dry and the next call blocks
+            int refused = 0;
+            for (int i = 0; i < POOL_SIZE * 2; i++) {
+                try {
+                    cache.setBalance(CardNumbers.pack("2222"), 1, 5);
+                } catch (IllegalArgumentException e) {
+                    refused++;
+                }
+            }
+            check("update of an unknown card refused", refused == POOL_SIZE * 2);
+            check("pool intact after failures", cache.size() == 1);
+
+            concurrentUpdates(cache);
+
+            cache.clear();
+            check("clear", cache.size() == 0 && !cache.contains(card));
+        }
+
+        try (Connection connection = DriverManager.getConnection(url);
+             Statement sql = connection.createStatement()) {
+            sql.executeUpdate("CREATE TABLE atm_accounts (card BIGINT PRIMARY KEY, balance BIGINT NOT NULL)");
+            sql.executeUpdate("INSERT INTO atm_accounts VALUES (1111, 42)");
+            try (JdbcAccountCache cache = new JdbcAccountCache(url, POOL_SIZE)) {
+                AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, new PinHasher(1), cache);
+                engine.openAccount("3333", "1234", 700);
+                check("engine writes to the cache", cache.getBalance(CardNumbers.pack("3333")) == 700);
+                engine.close();
+            }
+            check("other tables survive engine startup", count(sql, "atm_accounts") == 1);
+        }
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Threads contend for the pooled connections, each updating a card of its own
+    private static void concurrentUpdates(JdbcAccountCache cache) throws InterruptedException {
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] workers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            long card = CardNumbers.pack(Integer.toString(5000 + t));
+            cache.insert(card, "hash", 0, 0);
+            workers[t] = new Thread(() -> {
+                try {
+                    for (int i = 1; i <= UPDATES_PER_THREAD; i++) {
+                        cache.setBalance(card, cache.getBalance(card) + 1, i);
+                    }
+                } catch (RuntimeException e) {
+                    errors.incrementAndGet();
+                    e.printStackTrace();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        boolean ok = errors.get() == 0;
+        for (int t = 0; t < THREADS; t++) {
+            long card = CardNumbers.pack(Integer.toString(5000 + t));
+            ok &= cache.getBalance(card) == UPDATES_PER_THREAD && cache.getLastLsn(card) == UPDATES_PER_THREAD;
+        }
+        check(THREADS + " threads on " + POOL_SIZE + " connections", ok);
+    }
+
+    private static long count(Statement sql, String table) throws SQLException {
+        try (ResultSet rows = sql.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rows.next();
+            return rows.getLong(1);
+        }
+    }
+
+    private static void check(String name, boolean passed) {
+        if (!passed) {
+            failures++;
+            System.out.println("FAILED " + name);
+        }
+    }
+}
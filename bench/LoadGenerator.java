@@ -0,0 +1,402 @@
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator for sizing hardware. It simulates a fleet of ATMs as an
+// open-loop stream of sessions: sessions arrive at a fixed average rate (Poisson)
+// whether or not earlier ones have finished, and each logs in, performs a few
+// operations drawn from a weighted mix on accounts picked with Zipf popularity, and
+// logs out. Login latency is measured from when the session was due to start, so a
+// backlog shows up in the percentiles instead of quietly lowering the offered load.
+// Each rate runs for the given duration; where completed sessions stop keeping up
+// with offered ones, or p99 climbs steeply, is the saturation point.
+//
+// The target is the engine in-process behind AtmService ("local") or the network host
+// on loopback through pipelined AtmClients ("loopback"). The generator owns the engine
+// either way, so at the end it checks that money was conserved. The arrival sequence
+// and every session's plan come from the seed, so runs are repeatable.
+//
+// Usage: java LoadGenerator [key=value ...], keys and defaults:
+//   target=local|loopback  rates=25,50,100 (sessions/s)  duration=20 (s per rate)
+//   accounts=100000  zipf=1.0  ops=3 (per session)  seed=42
+//   mix=withdraw:45,balance:30,transfer:10,deposit:10,pin:5
+//   terminals=(4 x highest rate)  connections=8 (loopback)  threads=4  maxInFlight=10000
+//   store=memory (see AccountStore.open)  stripes=1024  journal=(none, else a file)
+//   pinIterations=(PinHasher default)  limits=on|off (per-card velocity limits)
+public class LoadGenerator {
+    private static final String PIN = "0000";
+    private static final long INITIAL_BALANCE = Money.ofRupees(100_000);
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private enum Op { LOGIN, BALANCE, WITHDRAW, DEPOSIT, TRANSFER, PIN_CHANGE, LOGOUT }
+
+    private static final Map<String, Op> MIX_NAMES = Map.of("balance", Op.BALANCE, "withdraw", Op.WITHDRAW,
+            "deposit", Op.DEPOSIT, "transfer", Op.TRANSFER, "pin", Op.PIN_CHANGE);
+
+    // Inverse-CDF sampler over ranks 0..n-1 where rank k has weight 1 / (k + 1)^s
+    private static final class Zipf {
+        private final double[] cdf;
+
+        Zipf(int n, double s) {
+            cdf = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1 / Math.pow(k + 1, s);
+                cdf[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cdf[k] /= sum;
+            }
+        }
+
+        int sample(Random random) {
+            int i = Arrays.binarySearch(cdf, random.nextDouble());
+            return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+        }
+    }
+
+    // Everything one session will do, drawn up front on the scheduler thread
+    private static final class Plan {
+        final int id;
+        final long due;
+        final String terminal;
+        final String card;
+        final Op[] ops;
+        final String[] toCards;
+        final long[] amounts;
+
+        Plan(int id, long due, String terminal, String card, int ops) {
+            this.id = id;
+            this.due = due;
+            this.terminal = terminal;
+            this.card = card;
+            this.ops = new Op[ops];
+            this.toCards = new String[ops];
+            this.amounts = new long[ops];
+        }
+    }
+
+    private static final class Stats {
+        final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+        final LatencyHistogram sessions = new LatencyHistogram();
+        final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+        final LongAdder completedOps = new LongAdder();
+        int offered;
+        int dropped;
+        long elapsedNanos; // from the first arrival until the last session drained
+
+        Stats() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    private final Map<String, String> options;
+    private final int accounts;
+    private final int opsPerSession;
+    private final int terminals;
+    private final int maxInFlight;
+    private final Zipf popularity;
+    private final Op[] mix; // one entry per unit of weight
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder deposited = new LongAdder();
+    private final LongAdder withdrawn = new LongAdder();
+    private final LongAdder unknownOutcomes = new LongAdder();
+    private AtmService service;
+    private AtmClient[] clients; // null when driving the service directly
+    private int nextSession;
+
+    private LoadGenerator(Map<String, String> options, double highestRate) {
+        this.options = options;
+        accounts = Integer.parseInt(option("accounts", "100000"));
+        opsPerSession = Integer.parseInt(option("ops", "3"));
+        // The engine allows each terminal about one login or PIN change a second
+        terminals = Integer.parseInt(option("terminals", Integer.toString((int) Math.ceil(highestRate * 4))));
+        maxInFlight = Integer.parseInt(option("maxInFlight", "10000"));
+        popularity = new Zipf(accounts, Double.parseDouble(option("zipf", "1.0")));
+        mix = parseMix(option("mix", "withdraw:45,balance:30,transfer:10,deposit:10,pin:5"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                System.err.println("Expected key=value but got " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        double[] rates = Arrays.stream(options.getOrDefault("rates", "25,50,100").split(","))
+                .mapToDouble(Double::parseDouble).toArray();
+        new LoadGenerator(options, Arrays.stream(rates).max().orElse(1)).run(rates);
+    }
+
+    private void run(double[] rates) throws Exception {
+        int pinIterations = Integer.parseInt(option("pinIterations", Integer.toString(PinHasher.DEFAULT_ITERATIONS)));
+        PinHasher pins = new PinHasher(pinIterations);
+        AccountStore store = AccountStore.open(option("store", "memory"));
+        int stripes = Integer.parseInt(option("stripes", Integer.toString(AtmEngine.DEFAULT_LOCK_STRIPES)));
+        String journal = options.get("journal");
+        try (AtmEngine engine = journal == null ? new AtmEngine(stripes, pins, store)
+                : new AtmEngine(stripes, pins, store, new Journal(Paths.get(journal)), null)) {
+            if (option("limits", "on").equals("off")) {
+                engine.getVelocityLimits().setLimits(VelocityLimits.Limits.UNLIMITED);
+            }
+            // One hash for every account, so setup does not pay for a PBKDF2 run per card
+            String pinHash = pins.hash(PIN);
+            for (int i = 0; i < accounts; i++) {
+                engine.importAccount(card(i), pinHash, INITIAL_BALANCE);
+            }
+            long initialTotal = totalBalance(engine);
+
+            service = new AtmService(engine, Integer.parseInt(option("threads", "4")), 10, TimeUnit.SECONDS);
+            AtmServer server = null;
+            if (option("target", "local").equals("loopback")) {
+                server = new AtmServer(new InetSocketAddress("127.0.0.1", 0), service);
+                server.start();
+                clients = new AtmClient[Integer.parseInt(option("connections", "8"))];
+                for (int i = 0; i < clients.length; i++) {
+                    clients[i] = new AtmClient(server.getAddress());
+                }
+            }
+
+            System.out.printf("target=%s accounts=%,d zipf=%s terminals=%d pinIterations=%d store=%s%n",
+                    option("target", "local"), accounts, option("zipf", "1.0"), terminals, pinIterations,
+                    option("store", "memory"));
+            Random random = new Random(Long.parseLong(option("seed", "42")));
+            long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "20")));
+            try {
+                for (double rate : rates) {
+                    report(rate, runRate(rate, duration, random));
+                }
+            } finally {
+                if (clients != null) {
+                    for (AtmClient client : clients) {
+                        client.close();
+                    }
+                }
+                if (server != null) {
+                    server.close();
+                }
+                service.close();
+            }
+            checkMoney(engine, initialTotal);
+        }
+    }
+
+    private Stats runRate(double rate, long duration, Random random) {
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        long due = start;
+        while (due < start + duration) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Plan plan = plan(nextSession++, due, random);
+            stats.offered++;
+            if (inFlight.get() >= maxInFlight) {
+                stats.dropped++;
+            } else {
+                inFlight.incrementAndGet();
+                start(plan, stats);
+            }
+            due += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+        }
+        long drainUntil = System.nanoTime() + DRAIN_NANOS;
+        while (inFlight.get() > 0 && System.nanoTime() < drainUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private Plan plan(int id, long due, Random random) {
+        int account = popularity.sample(random);
+        Plan plan = new Plan(id, due, "lg-" + (id % terminals), card(account), opsPerSession);
+        for (int i = 0; i < opsPerSession; i++) {
+            Op op = mix[random.nextInt(mix.length)];
+            plan.ops[i] = op;
+            if (op == Op.TRANSFER) {
+                int to = popularity.sample(random);
+                plan.toCards[i] = card(to != account ? to : (account + 1) % accounts);
+                plan.amounts[i] = Money.ofRupees(1 + random.nextInt(5_000));
+            } else {
+                plan.amounts[i] = Money.ofRupees(100 * (1 + random.nextInt(100)));
+            }
+        }
+        return plan;
+    }
+
+    private void start(Plan plan, Stats stats) {
+        CompletableFuture<AtmResult> login = clients == null ? service.login(plan.terminal, plan.card, PIN)
+                : clients[plan.id % clients.length].login(plan.terminal, plan.card, PIN);
+        login.whenComplete((result, error) -> {
+            long now = System.nanoTime();
+            record(stats, Op.LOGIN, plan.due, now, result, error);
+            if (error != null || !result.isSuccess()) {
+                finish(plan, stats, now);
+            } else {
+                step(plan, stats, result.getSessionToken(), 0);
+            }
+        });
+    }
+
+    private void step(Plan plan, Stats stats, String session, int index) {
+        AtmOperations operations = clients == null ? service : clients[plan.id % clients.length];
+        long start = System.nanoTime();
+        if (index == plan.ops.length) {
+            operations.logout(session).whenComplete((ignored, error) -> {
+                long now = System.nanoTime();
+                record(stats, Op.LOGOUT, start, now, AtmResult.ok(0), error);
+                finish(plan, stats, now);
+            });
+            return;
+        }
+        Op op = plan.ops[index];
+        long amount = plan.amounts[index];
+        CompletableFuture<AtmResult> request;
+        switch (op) {
+            case BALANCE:
+                request = operations.balance(session);
+                break;
+            case WITHDRAW:
+                request = operations.withdraw(session, amount, IdempotencyCache.newKey());
+                break;
+            case DEPOSIT:
+                request = operations.deposit(session, amount, IdempotencyCache.newKey());
+                break;
+            case TRANSFER:
+                request = operations.transfer(session, plan.toCards[index], amount, IdempotencyCache.newKey());
+                break;
+            default:
+                request = operations.changePin(session, PIN, PIN, PIN, IdempotencyCache.newKey());
+                break;
+        }
+        request.whenComplete((result, error) -> {
+            long now = System.nanoTime();
+            record(stats, op, start, now, result, error);
+            if (error == null && result.isSuccess()) {
+                if (op == Op.WITHDRAW) {
+                    withdrawn.add(amount);
+                } else if (op == Op.DEPOSIT) {
+                    deposited.add(amount);
+                }
+            } else if (error != null && cause(error) instanceof TimeoutException && op != Op.BALANCE) {
+                unknownOutcomes.increment(); // may still be applied after the client gave up
+            }
+            if (error != null || result.getStatus() == AtmResult.Status.SESSION_EXPIRED) {
+                finish(plan, stats, now);
+            } else {
+                step(plan, stats, session, index + 1);
+            }
+        });
+    }
+
+    private void finish(Plan plan, Stats stats, long now) {
+        stats.sessions.record(now - plan.due);
+        inFlight.decrementAndGet();
+    }
+
+    private static void record(Stats stats, Op op, long start, long end, AtmResult result, Throwable error) {
+        stats.latency[op.ordinal()].record(end - start);
+        stats.completedOps.increment();
+        if (error != null || !result.isSuccess()) {
+            String outcome = error != null ? cause(error).getClass().getSimpleName() : result.getStatus().name();
+            stats.failures.computeIfAbsent(op.name().toLowerCase() + " " + outcome, k -> new LongAdder()).increment();
+        }
+    }
+
+    private static void report(double rate, Stats stats) {
+        double elapsed = stats.elapsedNanos / 1e9;
+        System.out.printf("%nrate %.0f/s: offered %,d sessions, completed %,d (%.1f/s), dropped %,d, ops %,d (%.1f/s)%n",
+                rate, stats.offered, stats.sessions.count(), stats.sessions.count() / elapsed, stats.dropped,
+                stats.completedOps.sum(), stats.completedOps.sum() / elapsed);
+        System.out.printf("  %-10s %10s %10s %10s %10s %10s%n", "op", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms");
+        for (Op op : Op.values()) {
+            LatencyHistogram h = stats.latency[op.ordinal()];
+            if (h.count() > 0) {
+                row(op.name().toLowerCase(), h);
+            }
+        }
+        row("session", stats.sessions);
+        if (!stats.failures.isEmpty()) {
+            StringBuilder line = new StringBuilder("  not ok:");
+            new TreeMap<>(stats.failures).forEach((k, v) -> line.append(' ').append(k).append('=').append(v.sum()));
+            System.out.println(line);
+        }
+    }
+
+    private static void row(String name, LatencyHistogram h) {
+        System.out.printf("  %-10s %,10d %10.2f %10.2f %10.2f %10.2f%n", name, h.count(), h.percentile(50) / 1e6,
+                h.percentile(90) / 1e6, h.percentile(99) / 1e6, h.percentile(99.9) / 1e6);
+    }
+
+    // Transfers move money between accounts, so only deposits and withdrawals change the total
+    private void checkMoney(AtmEngine engine, long initialTotal) {
+        long total = totalBalance(engine);
+        long expected = initialTotal + deposited.sum() - withdrawn.sum();
+        System.out.printf("%nmoney: total %s, expected %s: %s%n", Money.format(total), Money.format(expected),
+                total == expected ? "conserved" : "MISMATCH");
+        if (unknownOutcomes.sum() > 0) {
+            System.out.printf("  %,d mutations timed out, so their outcome is unknown%n", unknownOutcomes.sum());
+        }
+    }
+
+    private long totalBalance(AtmEngine engine) {
+        long total = 0;
+        for (int i = 0; i < accounts; i++) {
+            total += engine.balance(card(i)).getBalance();
+        }
+        return total;
+    }
+
+    private String option(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    private static Op[] parseMix(String spec) {
+        int total = 0;
+        Map<Op, Integer> weights = new HashMap<>();
+        for (String part : spec.split(",")) {
+            String[] nameAndWeight = part.split(":");
+            Op op = MIX_NAMES.get(nameAndWeight[0]);
+            if (op == null || nameAndWeight.length != 2) {
+                throw new IllegalArgumentException("Bad mix entry " + part + ", expected one of " + MIX_NAMES.keySet());
+            }
+            int weight = Integer.parseInt(nameAndWeight[1]);
+            weights.merge(op, weight, Integer::sum);
+            total += weight;
+        }
+        Op[] mix = new Op[total];
+        int i = 0;
+        for (Op op : Op.values()) {
+            for (int w = weights.getOrDefault(op, 0); w > 0; w--) {
+                mix[i++] = op;
+            }
+        }
+        return mix;
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private static String card(int i) {
+        return Integer.toString(10_000_000 + i);
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+// End-to-end check of the terminal protocol: starts a host on a loopback port and
+// drives every operation through AtmClient, comparing each outcome, including the
+// error statuses, with what the engine is expected to answer. Logins come from
+// many terminal ids on the one address, as from terminals behind a switch, and one
+// terminal is then pushed past its login limit. Ends with a malformed frame, which
+// the host must answer by closing the connection. Exits with status 1 on any
+// mismatch. Usage: java LoopbackCheck
+public class LoopbackCheck {
+    private static final PinHasher PINS = new PinHasher(1); // PIN hashing is not what is checked here
+    private static int failures;
+    private static int terminals;
+
+    public static void main(String[] args) throws Exception {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, PINS);
+        engine.openAccount("1111", "1234", Money.ofRupees(1_000));
+        engine.openAccount("2222", "1234", 0);
+        engine.openAccount("3333", "1234", 0);
+        try (AtmService service = new AtmService(engine);
+             AtmServer server = new AtmServer(new InetSocketAddress("127.0.0.1", 0), service);
+             AtmClient client = startClient(server)) {
+            expect("unknown card", AtmResult.Status.CARD_NOT_RECOGNIZED, login(client, "9999", "1234").get());
+            expect("wrong PIN", AtmResult.Status.INVALID_PIN, login(client, "1111", "0000").get());
+            AtmResult login = login(client, "1111", "1234").get();
+            expect("login", AtmResult.Status.OK, login);
+            String session = login.getSessionToken();
+
+            expectBalance("balance", Money.ofRupees(1_000), client.balance(session).get());
+            expectBalance("withdrawal", Money.ofRupees(900), client.withdraw(session, Money.ofRupees(100),
+                    IdempotencyCache.newKey()).get());
+            expect("overdraft", AtmResult.Status.INSUFFICIENT_FUNDS,
+                    client.withdraw(session, Money.ofRupees(5_000), IdempotencyCache.newKey()).get());
+            expect("negative amount", AtmResult.Status.INVALID_AMOUNT,
+                    client.withdraw(session, -1, IdempotencyCache.newKey()).get());
+            long key = IdempotencyCache.newKey();
+            expectBalance("deposit", Money.ofRupees(950), client.deposit(session, Money.ofRupees(50), key).get());
+            expectBalance("retried deposit", Money.ofRupees(950),
+                    client.deposit(session, Money.ofRupees(50), key).get());
+            check("retried deposit applied once", engine.balance("1111").getBalance() == Money.ofRupees(950));
+            expect("key reused", AtmResult.Status.KEY_REUSED, client.deposit(session, Money.ofRupees(70), key).get());
+            expectBalance("transfer", Money.ofRupees(700), client.transfer(session, "2222", Money.ofRupees(250),
+                    IdempotencyCache.newKey()).get());
+            expect("unknown recipient", AtmResult.Status.RECIPIENT_NOT_FOUND,
+                    client.transfer(session, "9999", 100, IdempotencyCache.newKey()).get());
+            expect("transfer to self", AtmResult.Status.SAME_ACCOUNT,
+                    client.transfer(session, "1111", 100, IdempotencyCache.newKey()).get());
+            check("recipient credited", engine.balance("2222").getBalance() == Money.ofRupees(250));
+
+            TransactionHistory history = client.history(session).get();
+            check("history has the opening row and four transactions, got " + history.size(), history.size() == 5);
+
+            expect("PIN mismatch", AtmResult.Status.PIN_MISMATCH,
+                    client.changePin(session, "1234", "4321", "4322", IdempotencyCache.newKey()).get());
+            expect("bad new PIN", AtmResult.Status.INVALID_NEW_PIN,
+                    client.changePin(session, "1234", "12", "12", IdempotencyCache.newKey()).get());
+            expect("PIN change", AtmResult.Status.OK,
+                    client.changePin(session, "1234", "4321", "4321", IdempotencyCache.newKey()).get());
+            expect("login with the new PIN", AtmResult.Status.OK, login(client, "1111", "4321").get());
+
+            client.logout(session).get();
+            expect("after logout", AtmResult.Status.SESSION_EXPIRED, client.balance(session).get());
+            expect("made-up session", AtmResult.Status.SESSION_EXPIRED, client.balance("not-a-session").get());
+
+            for (int i = 0; i < LoginThrottle.DEFAULT_MAX_FAILURES; i++) {
+                login(client, "3333", "0000").get();
+            }
+            expect("locked card", AtmResult.Status.CARD_LOCKED, login(client, "3333", "1234").get());
+
+            for (int i = 0; i < TerminalRateLimiter.DEFAULT_BURST; i++) {
+                client.login("busy-terminal", "2222", "1234").get();
+            }
+            expect("terminal over its limit", AtmResult.Status.RATE_LIMITED,
+                    client.login("busy-terminal", "2222", "1234").get());
+            expect("other terminal on that address", AtmResult.Status.OK, login(client, "2222", "1234").get());
+
+            check("malformed frame closes the connection", malformedFrameClosed(server.getAddress()));
+            check("client still works", login(client, "2222", "1234").get().isSuccess());
+        }
+        engine.close();
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static AtmClient startClient(AtmServer server) throws IOException {
+        server.start();
+        return new AtmClient(server.getAddress(), "loopback-check");
+    }
+
+    // Each login from a terminal of its own
+    private static CompletableFuture<AtmResult> login(AtmClient client, String cardNumber, String pin) {
+        return client.login("terminal-" + ++terminals, cardNumber, pin);
+    }
+
+    // A frame longer than the host accepts, on a connection of its own
+    private static boolean malformedFrameClosed(InetSocketAddress address) throws IOException {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            socket.setSoTimeout(5_000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(AtmMessage.MAX_FRAME_BYTES + 1);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            try {
+                return in.read() < 0;
+            } catch (IOException e) {
+                return true; // reset by the host
+            }
+        }
+    }
+
+    private static void expect(String name, AtmResult.Status status, AtmResult result) {
+        check(name + ": expected " + status + ", got " + result.getStatus(), result.getStatus() == status);
+    }
+
+    private static void expectBalance(String name, long balance, AtmResult result) {
+        check(name + ": expected OK with " + Money.format(balance) + ", got " + result.getStatus() + " with "
+                + Money.format(result.getBalance()), result.isSuccess() && result.getBalance() == balance);
+    }
+
+    private static void check(String name, boolean passed) {
+        if (!passed) {
+            failures++;
+            System.out.println("FAILED " + name);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+// Loopback throughput of pipelined deposits against a host with a journal, for
+// several server batch sizes. One terminal keeps up to PIPELINE_DEPTH requests in
+// flight. Usage: java PipelineBenchmark [ops] [fsync true|false] (default 20000 true).
+public class PipelineBenchmark {
+    private static final int ACCOUNTS = 1000;
+    private static final int PIPELINE_DEPTH = 64;
+    private static final int[] BATCH_SIZES = {1, 2, 4, 8, 16, 32, 64};
+    private static final PinHasher PINS = new PinHasher(1); // PIN hashing is not what is measured here
+
+    public static void main(String[] args) throws Exception {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        boolean fsync = args.length <= 1 || Boolean.parseBoolean(args[1]);
+        System.out.printf("%-10s %12s%n", "batch", "ops/s");
+        for (int batch : BATCH_SIZES) {
+            run(batch, ops / 10, fsync); // warmup
+            System.out.printf("%-10d %12.0f%n", batch, run(batch, ops, fsync));
+        }
+    }
+
+    private static double run(int batch, int ops, boolean fsync) throws Exception {
+        Path dir = Files.createTempDirectory("atm-pipeline");
+        try (AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, PINS,
+                new Journal(dir.resolve("atm.journal"), fsync, 512, 0), null);
+             AtmService service = new AtmService(engine);
+             AtmServer server = new AtmServer(new InetSocketAddress("127.0.0.1", 0), service, batch);
+             AtmClient client = startClient(server)) {
+            // Sessions are opened in-process, one terminal each, to stay clear of the login rate limit
+            String[] sessions = new String[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                engine.openAccount(card(i), "0000", Money.ofRupees(10_000));
+                sessions[i] = service.login("bench-" + i, card(i), "0000").get().getSessionToken();
+            }
+            Semaphore window = new Semaphore(PIPELINE_DEPTH);
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) {
+                window.acquire();
+                client.deposit(sessions[i % ACCOUNTS], 100, IdempotencyCache.newKey())
+                        .whenComplete((r, e) -> window.release());
+            }
+            window.acquire(PIPELINE_DEPTH);
+            return ops / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static AtmClient startClient(AtmServer server) throws IOException {
+        server.start();
+        return new AtmClient(server.getAddress());
+    }
+
+    private static String card(int i) {
+        return Integer.toString(10_000_000 + i);
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Measures engine startup from a full journal replay versus newest snapshot plus
+// journal tail. Usage: java StartupBenchmark [accounts...] (default 1000000 10000000);
+// 10M accounts needs a large heap, e.g. -Xmx16g.
+public class StartupBenchmark {
+    private static final int OPS_PER_ACCOUNT = 2;
+    private static final double TAIL_FRACTION = 0.05;
+    private static final PinHasher PINS = new PinHasher(1); // PIN hashing is not what is measured here
+
+    public static void main(String[] args) throws IOException {
+        long[] sizes = args.length == 0 ? new long[]{1_000_000, 10_000_000} : new long[args.length];
+        for (int i = 0; i < args.length; i++) {
+            sizes[i] = Long.parseLong(args[i]);
+        }
+        for (long size : sizes) {
+            run((int) size);
+        }
+    }
+
+    private static void run(int accounts) throws IOException {
+        Path dir = Files.createTempDirectory("atm-startup");
+        Path journalFile = dir.resolve("atm.journal");
+        Path snapshotDir = dir.resolve("snapshots");
+        Random random = new Random(42);
+        try {
+            long start = System.nanoTime();
+            try (AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, PINS,
+                    new Journal(journalFile, false, 4096, 0), new SnapshotStore(snapshotDir))) {
+                engine.getVelocityLimits().setLimits(VelocityLimits.Limits.UNLIMITED);
+                for (int i = 0; i < accounts; i++) {
+                    engine.openAccount(card(i), "0000", Money.ofRupees(10_000));
+                }
+                long ops = (long) accounts * OPS_PER_ACCOUNT;
+                long tailStart = (long) (ops * (1 - TAIL_FRACTION));
+                for (long i = 0; i < ops; i++) {
+                    if (i == tailStart) {
+                        long snapshotStart = System.nanoTime();
+                        engine.snapshot();
+                        report(accounts, "snapshot write", snapshotStart);
+                    }
+                    String card = card(random.nextInt(accounts));
+                    if (random.nextBoolean()) {
+                        engine.deposit(card, 100);
+                    } else {
+                        engine.transfer(card, card(random.nextInt(accounts)), 100);
+                    }
+                }
+            }
+            report(accounts, "build journal", start);
+
+            start = System.nanoTime();
+            try (AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, PINS, new Journal(journalFile), null)) {
+                report(accounts, "full journal replay", start);
+                checkRecovered(engine, accounts);
+            }
+
+            start = System.nanoTime();
+            try (AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, PINS,
+                    new Journal(journalFile), new SnapshotStore(snapshotDir))) {
+                report(accounts, "snapshot + journal tail", start);
+                checkRecovered(engine, accounts);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static void checkRecovered(AtmEngine engine, int accounts) {
+        if (engine.getAccount(card(accounts - 1)) == null) {
+            throw new IllegalStateException("Recovery lost accounts");
+        }
+    }
+
+    private static String card(int i) {
+        return Integer.toString(10_000_000 + i);
+    }
+
+    private static void report(int accounts, String phase, long startNanos) {
+        System.out.printf("%,12d accounts  %-26s %8.2f s%n", accounts, phase, (System.nanoTime() - startNanos) / 1e9);
+    }
+}
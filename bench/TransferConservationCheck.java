@@ -0,0 +1,94 @@
+import java.util.SplittableRandom;
+
+// Stress check for the engine's stripe locks: threads make random transfers, with the
+// occasional withdrawal and deposit, between accounts at once, and afterwards the
+// money on all accounts must equal the opening total plus deposits minus withdrawals,
+// with no balance below zero. Runs over a wide set of accounts, a hot set where most
+// transfers collide, and the hot set with one account's credits sharded. Exits with
+// status 1 on any mismatch. Usage: java TransferConservationCheck [transfers] [threads]
+// (default 4000000 8).
+public class TransferConservationCheck {
+    private static final int WIDE_ACCOUNTS = 10_000;
+    private static final int HOT_ACCOUNTS = 16;
+    private static final long OPENING = Money.ofRupees(1_000);
+    private static final PinHasher PINS = new PinHasher(1); // PIN hashing is not what is checked here
+
+    public static void main(String[] args) throws InterruptedException {
+        long transfers = args.length > 0 ? Long.parseLong(args[0]) : 4_000_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        boolean ok = check("wide", WIDE_ACCOUNTS, false, transfers, threads);
+        ok &= check("hot", HOT_ACCOUNTS, false, transfers, threads);
+        ok &= check("hot, sharded credits", HOT_ACCOUNTS, true, transfers, threads);
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean check(String name, int accounts, boolean sharded, long transfers, int threads)
+            throws InterruptedException {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, PINS);
+        engine.getVelocityLimits().setLimits(VelocityLimits.Limits.UNLIMITED);
+        String[] cards = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            cards[i] = Integer.toString(10_000_000 + i);
+            engine.openAccount(cards[i], "0000", OPENING);
+        }
+        if (sharded) {
+            engine.shardCredits(cards[0]);
+        }
+        long[] deposited = new long[threads];
+        long[] withdrawn = new long[threads];
+        long[] refused = new long[threads];
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(42 + thread);
+                for (long i = thread; i < transfers; i += threads) {
+                    String from = cards[random.nextInt(accounts)];
+                    long amount = 1 + random.nextLong(Money.ofRupees(200));
+                    int op = random.nextInt(100);
+                    if (op == 0) {
+                        if (engine.withdraw(from, amount).isSuccess()) {
+                            withdrawn[thread] += amount;
+                        } else {
+                            refused[thread]++;
+                        }
+                    } else if (op == 1) {
+                        engine.deposit(from, amount);
+                        deposited[thread] += amount;
+                    } else if (!engine.transfer(from, cards[random.nextInt(accounts)], amount).isSuccess()) {
+                        refused[thread]++;
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long expected = OPENING * accounts;
+        long refusals = 0;
+        for (int t = 0; t < threads; t++) {
+            expected += deposited[t] - withdrawn[t];
+            refusals += refused[t];
+        }
+        long total = 0;
+        int negative = 0;
+        for (String card : cards) {
+            long balance = engine.balance(card).getBalance();
+            total += balance;
+            if (balance < 0) {
+                negative++;
+            }
+        }
+        boolean ok = total == expected && negative == 0;
+        System.out.printf("%-24s %,d ops on %d threads in %.1f s, %,d refused: total %s, expected %s%s%n",
+                name, transfers, threads, elapsed / 1e9, refusals, Money.format(total), Money.format(expected),
+                ok ? "" : negative > 0 ? "  FAILED, " + negative + " negative balances" : "  FAILED");
+        return ok;
+    }
+}
@@ -0,0 +1,330 @@
+import atm.jmh.Workload;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// The bodies of the benchmarks in atm.jmh, one factory per workload, looked up by name
+// (see Workload.create). Inputs come from fixed seeds, so two releases run on one
+// machine do the same work. Per-thread inputs are laid out for up to MAX_THREADS
+// threads; more threads share them.
+public final class Workloads {
+    private static final long SEED = 42;
+    private static final int INPUTS = 4096; // indexed with i & (INPUTS - 1)
+    private static final int MAX_THREADS = 8;
+    private static final int PAYERS_PER_THREAD = 64;
+    private static final PinHasher FAST_PINS = new PinHasher(1); // where PIN hashing is not what is measured
+    private static final long[] QUICK_AMOUNTS = {Money.ofRupees(500), Money.ofRupees(1_000), Money.ofRupees(2_000),
+            Money.ofRupees(5_000)};
+
+    private Workloads() {
+    }
+
+    public static Workload accountDeposit() {
+        Account account = account();
+        return (thread, i) -> {
+            account.deposit(100, i, i);
+            return account.getBalance();
+        };
+    }
+
+    public static Workload accountWithdraw() {
+        Account account = account();
+        return (thread, i) -> {
+            account.withdraw(100, i, i);
+            return account.getBalance();
+        };
+    }
+
+    private static Account account() {
+        AccountStore store = new InMemoryAccountStore();
+        store.insert(CardNumbers.pack("1000"), FAST_PINS.hash("0000"), Money.ofRupees(1_000_000_000), 0);
+        return new Account("1000", store, new TransactionHistory(null));
+    }
+
+    // With engineKeyedDeposit, the same deposits with and without an idempotency key
+    public static Workload engineDeposit() {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, FAST_PINS);
+        engine.openAccount("1000", "0000", 0);
+        return (thread, i) -> engine.deposit("1000", 100).getBalance();
+    }
+
+    public static Workload engineKeyedDeposit() {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, FAST_PINS);
+        engine.openAccount("1000", "0000", 0);
+        long[] keys = new long[INPUTS];
+        Random random = new Random(SEED);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong() | 1;
+        }
+        return (thread, i) -> engine.deposit("1000", 100, keys[(int) i & (INPUTS - 1)] + i).getBalance();
+    }
+
+    // Transfers between random pairs of the given number of accounts
+    public static Workload transfer(int accounts) {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, FAST_PINS);
+        engine.getVelocityLimits().setLimits(VelocityLimits.Limits.UNLIMITED); // so every transfer goes through
+        String[] cards = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            cards[i] = Integer.toString(10_000_000 + i);
+            engine.openAccount(cards[i], "0000", Money.ofRupees(1_000_000));
+        }
+        int[][] pairs = new int[MAX_THREADS][INPUTS];
+        Random random = new Random(SEED);
+        for (int[] perThread : pairs) {
+            for (int i = 0; i < perThread.length; i++) {
+                perThread[i] = random.nextInt(accounts) << 16 | random.nextInt(accounts);
+            }
+        }
+        return (thread, i) -> {
+            int pair = pairs[thread % MAX_THREADS][(int) i & (INPUTS - 1)];
+            return engine.transfer(cards[pair >>> 16], cards[pair & 0xFFFF], 1).getBalance();
+        };
+    }
+
+    // Many payers paying one merchant account, its credits on its lock stripe or sharded
+    // (AtmEngine.shardCredits). Each thread pays from its own accounts, so the merchant
+    // is the only lock they share. Closing checks that every paisa arrived.
+    public static Workload hotAccountTransfer(boolean sharded) {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, FAST_PINS);
+        engine.getVelocityLimits().setLimits(VelocityLimits.Limits.UNLIMITED);
+        String merchant = "99999999";
+        engine.openAccount(merchant, "0000", 0);
+        if (sharded) {
+            engine.shardCredits(merchant);
+        }
+        long opening = Money.ofRupees(1_000_000_000);
+        String[][] payers = new String[MAX_THREADS][PAYERS_PER_THREAD];
+        for (int t = 0; t < MAX_THREADS; t++) {
+            for (int p = 0; p < PAYERS_PER_THREAD; p++) {
+                payers[t][p] = Integer.toString(10_000_000 + t * PAYERS_PER_THREAD + p);
+                engine.openAccount(payers[t][p], "0000", opening);
+            }
+        }
+        return new Workload() {
+            @Override
+            public long run(int thread, long i) {
+                return engine.transfer(payers[thread % MAX_THREADS][(int) (i % PAYERS_PER_THREAD)], merchant, 1)
+                        .getBalance();
+            }
+
+            @Override
+            public void close() {
+                long paid = 0;
+                for (String[] perThread : payers) {
+                    for (String payer : perThread) {
+                        paid += opening - engine.balance(payer).getBalance();
+                    }
+                }
+                long balance = engine.balance(merchant).getBalance();
+                if (balance != paid) {
+                    throw new IllegalStateException("Merchant balance " + balance + ", expected " + paid);
+                }
+            }
+        };
+    }
+
+    public static Workload pinVerify() {
+        PinHasher pins = new PinHasher();
+        String hash = pins.hash("1234");
+        return (thread, i) -> pins.verify("1234", hash) ? 1 : 0;
+    }
+
+    public static Workload login() {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, new PinHasher());
+        engine.openAccount("1000", "1234", Money.ofRupees(1_000));
+        engine.getTerminalRateLimiter().setRate(Double.POSITIVE_INFINITY, 1); // not what is measured here
+        return (thread, i) -> {
+            AtmResult result = engine.login("bench", "1000", "1234");
+            if (!result.isSuccess()) {
+                throw new IllegalStateException("Login failed: " + result.getStatus());
+            }
+            return result.getBalance();
+        };
+    }
+
+    public static Workload historyLast10(int size) {
+        AtmEngine engine = historyEngine(size);
+        return (thread, i) -> {
+            long sum = 0;
+            for (Transaction t : engine.recentTransactions("1000", 10)) {
+                sum += t.getAmount();
+            }
+            return sum;
+        };
+    }
+
+    public static Workload historyScan(int size) {
+        TransactionHistory history = historyEngine(size).getAccount("1000").getHistory();
+        return (thread, i) -> {
+            long sum = 0;
+            for (Transaction t : history.snapshot()) {
+                sum += t.getAmount();
+            }
+            return sum;
+        };
+    }
+
+    // One account with size history rows, the opening deposit included
+    private static AtmEngine historyEngine(int size) {
+        AtmEngine engine = new AtmEngine(AtmEngine.DEFAULT_LOCK_STRIPES, FAST_PINS);
+        engine.openAccount("1000", "0000", Money.ofRupees(1_000));
+        for (int i = 1; i < size; i++) {
+            engine.deposit("1000", 100);
+        }
+        return engine;
+    }
+
+    // The old String.format rendering of balances against Money.format, on one balance
+    // and on varied amounts
+    public static Workload stringFormatRepeated() {
+        long balance = Money.ofRupees(250000);
+        return (thread, i) -> String.format("₹%.2f", balance / 100.0).length();
+    }
+
+    public static Workload moneyFormatRepeated() {
+        long balance = Money.ofRupees(250000);
+        return (thread, i) -> Money.format(balance).length();
+    }
+
+    public static Workload stringFormat() {
+        long[] amounts = amounts();
+        return (thread, i) -> String.format("₹%.2f", amounts[(int) i & (INPUTS - 1)] / 100.0).length();
+    }
+
+    public static Workload moneyFormat() {
+        long[] amounts = amounts();
+        return (thread, i) -> Money.format(amounts[(int) i & (INPUTS - 1)]).length();
+    }
+
+    public static Workload moneyFormatTo() {
+        long[] amounts = amounts();
+        StringBuilder receipt = new StringBuilder(64);
+        return (thread, i) -> {
+            receipt.setLength(0);
+            return Money.formatTo(receipt, amounts[(int) i & (INPUTS - 1)]).length();
+        };
+    }
+
+    public static Workload receiptText() {
+        long[] amounts = amounts();
+        return (thread, i) -> ATMApplication.receiptText(1_700_000_000_000L, "1234", "CASH WITHDRAWAL",
+                "Cash dispensed successfully", amounts[(int) i & (INPUTS - 1)],
+                amounts[(int) (i + 1) & (INPUTS - 1)]).length();
+    }
+
+    // Amounts up to ₹1 crore, for rendering
+    private static long[] amounts() {
+        long[] amounts = new long[INPUTS];
+        Random random = new Random(SEED);
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = (long) (random.nextDouble() * Money.ofRupees(10_000_000));
+        }
+        return amounts;
+    }
+
+    public static Workload dispenseSolve() {
+        long[] amounts = withdrawalAmounts();
+        DispenseSolver solver = CashCassettes.RUPEE_NOTES;
+        int[] full = {500, 2000, 2000, 2000};
+        return (thread, i) -> {
+            int[] notes = solver.solve(amounts[(int) i & (INPUTS - 1)], full);
+            return notes == null ? 0 : notes[0];
+        };
+    }
+
+    // Reserving notes from the cassettes of a fleet of terminals. A terminal that cannot
+    // make an amount is reloaded, as a cash-in-transit visit would.
+    public static Workload fleetReserve(int terminals) {
+        long[] amounts = withdrawalAmounts();
+        CashCassettes[] fleet = new CashCassettes[terminals];
+        for (int t = 0; t < terminals; t++) {
+            fleet[t] = CashCassettes.fullRupeeLoad();
+        }
+        return (thread, i) -> {
+            CashCassettes cassettes = fleet[(int) ((i * 0x9E3779B97F4A7C15L + thread) >>> 33) % terminals];
+            int[] notes = cassettes.reserve(amounts[(int) (i + thread) & (INPUTS - 1)]);
+            if (notes == null) {
+                cassettes.load(500 - cassettes.getCount(0), 2000 - cassettes.getCount(1),
+                        2000 - cassettes.getCount(2), 2000 - cassettes.getCount(3));
+                return 0;
+            }
+            return notes[0];
+        };
+    }
+
+    // 70% quick amounts (₹500, ₹1,000, ₹2,000, ₹5,000) and 30% custom multiples of ₹100
+    // up to ₹20,000
+    private static long[] withdrawalAmounts() {
+        long[] amounts = new long[INPUTS];
+        Random random = new Random(SEED);
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = random.nextInt(10) < 7 ? QUICK_AMOUNTS[random.nextInt(QUICK_AMOUNTS.length)]
+                    : Money.ofRupees(100 * (1 + random.nextInt(200)));
+        }
+        return amounts;
+    }
+
+    // Random balance reads and updates on a store of the given size, "memory" or "mapped"
+    public static Workload storeGetBalance(String store, int accounts) throws IOException {
+        StoreFixture fixture = new StoreFixture(store, accounts);
+        return new Workload() {
+            @Override
+            public long run(int thread, long i) {
+                return fixture.store.getBalance(fixture.probes[(int) i & (StoreFixture.PROBES - 1)]);
+            }
+
+            @Override
+            public void close() throws IOException {
+                fixture.close();
+            }
+        };
+    }
+
+    public static Workload storeSetBalance(String store, int accounts) throws IOException {
+        StoreFixture fixture = new StoreFixture(store, accounts);
+        return new Workload() {
+            @Override
+            public long run(int thread, long i) {
+                long card = fixture.probes[(int) i & (StoreFixture.PROBES - 1)];
+                fixture.store.setBalance(card, fixture.store.getBalance(card) + 1, i);
+                return card;
+            }
+
+            @Override
+            public void close() throws IOException {
+                fixture.close();
+            }
+        };
+    }
+
+    // Enough random cards that lookups miss the CPU caches, as they would in production
+    private static final class StoreFixture {
+        static final int PROBES = 1 << 20;
+
+        final AccountStore store;
+        final Path file; // null for the heap store
+        final long[] probes = new long[PROBES];
+
+        StoreFixture(String kind, int accounts) throws IOException {
+            file = kind.equals("mapped") ? Files.createTempFile("atm-accounts", ".store") : null;
+            store = file != null ? new MappedAccountStore(file, accounts) : new InMemoryAccountStore();
+            String pinHash = FAST_PINS.hash("0000");
+            for (int i = 0; i < accounts; i++) {
+                store.insert(CardNumbers.pack(Long.toString(1_000_000_000L + i)), pinHash, 1_000_000, 0);
+            }
+            Random random = new Random(SEED);
+            for (int i = 0; i < probes.length; i++) {
+                probes[i] = CardNumbers.pack(Long.toString(1_000_000_000L + random.nextInt(accounts)));
+            }
+        }
+
+        void close() throws IOException {
+            store.close();
+            if (file != null) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Random balance reads and updates on the heap-based InMemoryAccountStore and on
+// MappedAccountStore. Build time, GC and heap use are measured by
+// bench/AccountStoreBenchmark; pass -p cards=50000000 for a production-sized store.
+public class AccountStoreAccessBenchmark extends WorkloadBenchmark {
+    @Param({"storeGetBalance", "storeSetBalance"})
+    public String workload;
+
+    @Param({"memory", "mapped"})
+    public String store;
+
+    @Param({"1000000"})
+    public int cards;
+
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create(workload, store, cards);
+    }
+
+    @Benchmark
+    public long run(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
@@ -0,0 +1,22 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.ThreadParams;
+
+// Per-thread call counter, handed to Workload.run with the thread's index
+@State(Scope.Thread)
+public class Calls {
+    int thread;
+    private long calls;
+
+    @Setup
+    public void setUp(ThreadParams params) {
+        thread = params.getThreadIndex();
+    }
+
+    long next() {
+        return calls++;
+    }
+}
@@ -0,0 +1,17 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+// Solving for the notes of a withdrawal against full cassettes; amounts are 70% quick
+// amounts and 30% custom. FleetReserveBenchmark reserves them across many terminals.
+public class DispenseBenchmark extends WorkloadBenchmark {
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create("dispenseSolve");
+    }
+
+    @Benchmark
+    public long solve(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
@@ -0,0 +1,49 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+// Reserving notes from the cassettes of a fleet of terminals at once, in total
+// reservations per second; a terminal that cannot make an amount is reloaded. Thread
+// counts as in TransferBenchmark.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FleetReserveBenchmark extends WorkloadBenchmark {
+    @Param({"2000"})
+    public int terminals;
+
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create("fleetReserve", terminals);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long threads2(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads4(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long threads8(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
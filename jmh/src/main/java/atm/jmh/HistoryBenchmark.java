@@ -0,0 +1,24 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// History retrieval, the last 10 rows for a mini statement and a scan of every row,
+// on accounts of growing history
+public class HistoryBenchmark extends WorkloadBenchmark {
+    @Param({"historyLast10", "historyScan"})
+    public String workload;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create(workload, size);
+    }
+
+    @Benchmark
+    public long run(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
@@ -0,0 +1,49 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+// Many payers transferring into one merchant account at once, with the merchant's
+// credits on its lock stripe and then sharded, in total transfers per second. The
+// trial fails if any paisa went missing. Thread counts as in TransferBenchmark.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HotAccountBenchmark extends WorkloadBenchmark {
+    @Param({"false", "true"})
+    public boolean sharded;
+
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create("hotAccountTransfer", sharded);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long threads2(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads4(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long threads8(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
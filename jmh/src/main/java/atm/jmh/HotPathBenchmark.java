@@ -0,0 +1,23 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Regression suite for the single-threaded hot paths: account and engine mutations,
+// with and without an idempotency key, PIN verification and login at the default PIN
+// iterations, and currency and receipt rendering.
+public class HotPathBenchmark extends WorkloadBenchmark {
+    @Param({"accountDeposit", "accountWithdraw", "engineDeposit", "engineKeyedDeposit", "pinVerify", "login",
+            "moneyFormat", "receiptText"})
+    public String workload;
+
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create(workload);
+    }
+
+    @Benchmark
+    public long run(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
@@ -0,0 +1,21 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+// Compares the old String.format rendering of balances with Money.format and
+// Money.formatTo, on one repeated balance and on varied amounts
+public class MoneyFormatBenchmark extends WorkloadBenchmark {
+    @Param({"stringFormatRepeated", "moneyFormatRepeated", "stringFormat", "moneyFormat", "moneyFormatTo"})
+    public String workload;
+
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create(workload);
+    }
+
+    @Benchmark
+    public long run(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
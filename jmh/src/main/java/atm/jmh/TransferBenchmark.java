@@ -0,0 +1,49 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+// Engine transfers between random pairs of a wide set of accounts and of a hot set
+// where most transfers collide, in total transfers per second. JMH takes the thread
+// count from @Threads (or -t), not from a @Param, so each count is a method.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransferBenchmark extends WorkloadBenchmark {
+    @Param({"10000", "4"})
+    public int accounts;
+
+    @Override
+    protected Workload create() throws Exception {
+        return Workload.create("transfer", accounts);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long threads2(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads4(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long threads8(Calls calls) {
+        return body.run(calls.thread, calls.next());
+    }
+}
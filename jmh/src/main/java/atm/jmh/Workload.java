@@ -0,0 +1,25 @@
+package atm.jmh;
+
+import java.lang.reflect.Method;
+
+// A benchmark body. The application lives in the unnamed package, which code in a named
+// package cannot refer to and JMH will not generate benchmarks in, so the bodies are
+// built by the unnamed-package Workloads class and found by the name of their factory.
+public interface Workload extends AutoCloseable {
+    // One call; thread is the JMH thread index and i counts that thread's calls
+    long run(int thread, long i);
+
+    // Called after the trial, to release what the workload holds and check its invariants
+    @Override
+    default void close() throws Exception {
+    }
+
+    static Workload create(String factory, Object... args) throws ReflectiveOperationException {
+        for (Method method : Class.forName("Workloads").getMethods()) {
+            if (method.getName().equals(factory) && method.getParameterCount() == args.length) {
+                return (Workload) method.invoke(null, args);
+            }
+        }
+        throw new NoSuchMethodException("Workloads." + factory + " with " + args.length + " arguments");
+    }
+}
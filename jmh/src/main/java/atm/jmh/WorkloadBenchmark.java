@@ -0,0 +1,40 @@
+package atm.jmh;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Settings every benchmark here shares, so results are comparable between releases:
+// two fresh JVMs per benchmark, so that one unlucky JIT or heap layout shows up as
+// error rather than as the result, each warmed up for five one-second iterations and
+// measured for ten. Subclasses build their workload from their @Param fields.
+@State(Scope.Benchmark)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public abstract class WorkloadBenchmark {
+    protected Workload body;
+
+    protected abstract Workload create() throws Exception;
+
+    @Setup
+    public void setUp() throws Exception {
+        body = create();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        body.close();
+    }
+}